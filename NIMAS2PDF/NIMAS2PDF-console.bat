@@ -0,0 +1,2 @@
+@echo off
+java -Xms128m -Xmx768m -cp "%~dp0NIMAS2PDF.jar" org.eightfoldconsulting.nimas2pdf.ConsoleMain %*
@@ -0,0 +1,7 @@
+#!/bin/sh
+# Headless batch converter, see ConsoleMain for options
+# Every package converting at once holds its DTBook and FOP's pages in the
+# heap, so -threads defaults to at most one per 256 MB of -Xmx; raise -Xmx
+# along with -threads for large books on many-core machines.
+DIR=`dirname "$0"`
+exec java -Djava.awt.headless=true -Xms128m -Xmx768m -cp "$DIR/NIMAS2PDF.jar" org.eightfoldconsulting.nimas2pdf.ConsoleMain "$@"
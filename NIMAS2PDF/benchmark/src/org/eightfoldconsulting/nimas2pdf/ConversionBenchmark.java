@@ -0,0 +1,147 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the conversion pipeline on fixed sample packages: reading
+ * the package file and the three conversions ConsoleMain runs, each with a
+ * new XMLConverter as a conversion job does. Throughput and sampled latency,
+ * with its percentiles, are measured for each; BenchmarkMain adds the
+ * allocation rate.
+ * <p>
+ * The sample parameter names a directory under benchmark/samples or any
+ * package directory, for example -p sample=/path/to/package, or asks for a
+ * PackageGenerator package, for example -p sample=generated:chapters=50,mathml=2.
+ * The package is copied or generated to a temporary directory, where the
+ * XSL-FO convertFO2PDF reads is written first. The settings are the
+ * defaults, whatever the user settings.
+ *
+ * @author Gregory Buchenberger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+public class ConversionBenchmark {
+
+    private static final String GENERATED = "generated:";
+    @Param({"sample-book"})
+    public String sample;
+    private File packageDir;
+    private File outputDir;
+    private File opfFile;
+    private File xmlFile;
+    private File foFile;
+    private File xsltFile;
+    private OPFReader opfReader;
+    private Properties props;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // the converter logs every step at info
+        Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+        packageDir = createTempDir("package");
+        outputDir = createTempDir("output");
+        if (sample.startsWith(GENERATED)) {
+            PackageGenerator generator = new PackageGenerator();
+            if (sample.length() > GENERATED.length()) {
+                generator.set(sample.substring(GENERATED.length()));
+            }
+            opfFile = generator.generate(packageDir);
+        } else {
+            File sampleDir = new File(sample);
+            if (!sampleDir.isDirectory()) {
+                sampleDir = new File(new File(ApplicationProperties.getJarDirPath()).getParentFile(), "samples/" + sample);
+            }
+            FileUtils.copyDirectory(sampleDir, packageDir);
+            File[] packageFiles = packageDir.listFiles();
+            for (File file : packageFiles) {
+                if (file.getName().toLowerCase().endsWith(".opf")) {
+                    opfFile = file;
+                }
+            }
+            if (opfFile == null) {
+                throw new IOException("No package file in " + sampleDir.getPath());
+            }
+        }
+        props = ApplicationProperties.load(null);
+        xsltFile = ApplicationProperties.getStylesheetFile(props);
+        opfReader = new OPFReader(opfFile);
+        xmlFile = new File(packageDir, opfReader.getDaisyXML());
+        foFile = Utils.getFOFile(packageDir, opfReader.getIdentifier());
+        new XMLConverter(xmlFile, xsltFile, props).convertNIMAS2FO(foFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(packageDir);
+        FileUtils.deleteDirectory(outputDir);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public OPFReader readPackage() {
+        return new OPFReader(opfFile);
+    }
+
+    @Benchmark
+    public File convertNIMAS2FO() throws Exception {
+        File result = new File(outputDir, "nimas2fo.fo");
+        new XMLConverter(xmlFile, xsltFile, props).convertNIMAS2FO(result);
+        return result;
+    }
+
+    @Benchmark
+    public int convertFO2PDF() throws Exception {
+        XMLConverter converter = new XMLConverter(foFile, xsltFile, props);
+        converter.convertFO2PDF(opfReader, new File(outputDir, "fo2pdf.pdf"));
+        return converter.getPageCount();
+    }
+
+    @Benchmark
+    public int convertXML2PDF() throws Exception {
+        XMLConverter converter = new XMLConverter(xmlFile, xsltFile, props);
+        converter.convertXML2PDF(opfReader, new File(outputDir, "xml2pdf.pdf"));
+        return converter.getPageCount();
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile("nimas2pdf-" + prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create " + dir.getPath());
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,175 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.Attributes2;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Parses a DTBook document the way XMLConverter does, with the DTD compiled
+ * for every parse, with the shared DTDGrammarPool and without the external
+ * DTD where DTDGrammarPool.isExternalDTDNeeded allows. All three must report
+ * the same elements and attributes, leaving out the attribute defaults of the
+ * DTD, which the stylesheet treats the same as absent. The document parameter
+ * is a DTBook file; left empty, a DTBook of 200 paragraphs is generated.
+ *
+ * @author Gregory Buchenberger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+public class DTDBenchmark {
+
+    private static final int PER_PARSE = 0;
+    private static final int GRAMMAR_POOL = 1;
+    private static final int FAST_PATH = 2;
+    @Param({""})
+    public String document;
+    private File file;
+    private boolean generated;
+    private DefaultHandler handler = new DefaultHandler();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SAXException {
+        // the entity resolver logs every DTD it resolves
+        Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+        generated = document.length() == 0;
+        file = generated ? createDTBook(200) : new File(document);
+        String expected = parse(PER_PARSE, new Recorder());
+        if (!expected.equals(parse(GRAMMAR_POOL, new Recorder())) || !expected.equals(parse(FAST_PATH, new Recorder()))) {
+            throw new IllegalStateException(file + " reads differently with the grammar pool or on the fast path");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (generated) {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    public void dtdPerParse() throws IOException, SAXException {
+        parse(PER_PARSE, handler);
+    }
+
+    @Benchmark
+    public void grammarPool() throws IOException, SAXException {
+        parse(GRAMMAR_POOL, handler);
+    }
+
+    @Benchmark
+    public void fastPath() throws IOException, SAXException {
+        parse(FAST_PATH, handler);
+    }
+
+    private String parse(int mode, DefaultHandler contentHandler) throws IOException, SAXException {
+        XMLReader reader;
+        try {
+            SAXParserFactory spf = SAXParserFactory.newInstance();
+            spf.setValidating(false);
+            spf.setNamespaceAware(true);
+            reader = spf.newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException ex) {
+            throw new SAXException(ex);
+        }
+        reader.setEntityResolver(new XMLEntityResolver());
+        if (mode != PER_PARSE) {
+            DTDGrammarPool.setGrammarPool(reader);
+        }
+        if (mode == FAST_PATH && !DTDGrammarPool.isExternalDTDNeeded(file)) {
+            DTDGrammarPool.setLoadExternalDTD(reader, false);
+        }
+        reader.setContentHandler(contentHandler);
+        reader.parse(new InputSource(file.toURI().toString()));
+        return contentHandler.toString();
+    }
+
+    private static File createDTBook(int paragraphs) throws IOException {
+        File file = File.createTempFile("benchmark", ".xml");
+        file.deleteOnExit();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<!DOCTYPE dtbook PUBLIC \"-//NISO//DTD dtbook 2005-3//EN\" \""
+                    + XMLEntityResolver.DTBOOK_DTD + "\">\n");
+            out.write("<dtbook xmlns=\"http://www.daisy.org/z3986/2005/dtbook/\" version=\"2005-3\" "
+                    + "xml:lang=\"en-US\">\n<head><meta name=\"dc:Title\" content=\"Benchmark Book\"/></head>\n");
+            out.write("<book>\n<bodymatter>\n<level1>\n<h1>Chapter</h1>\n");
+            for (int i = 0; i < paragraphs; i++) {
+                if (i % 10 == 0) {
+                    out.write("<pagenum id=\"p" + i + "\">" + (i / 10 + 1) + "</pagenum>\n");
+                }
+                out.write("<p>Paragraph " + i + " with <em>some</em> text &amp; <a href=\"#p0\">a link</a>.</p>\n");
+            }
+            out.write("</level1>\n</bodymatter>\n</book>\n</dtbook>\n");
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Writes down the elements and the attributes given in the document.
+     */
+    private static class Recorder extends DefaultHandler {
+
+        private StringBuilder events = new StringBuilder();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            events.append('{').append(uri).append('}').append(localName);
+            for (int i = 0; i < atts.getLength(); i++) {
+                if (atts instanceof Attributes2 && !((Attributes2) atts).isSpecified(i)) {
+                    continue;
+                }
+                events.append(' ').append(atts.getQName(i)).append("=\"").append(atts.getValue(i)).append('"');
+            }
+            events.append('\n');
+        }
+
+        @Override
+        public String toString() {
+            return events.toString();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares OPFReader with the DOM and XPath OPFDOMReader on a generated
+ * package file listing the given number of images, after checking that both
+ * read the same values.
+ *
+ * @author Gregory Buchenberger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+public class OPFReaderBenchmark {
+
+    @Param({"500"})
+    public int images;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        // the entity resolver logs every DTD it resolves
+        Logger.getLogger("").setLevel(java.util.logging.Level.WARNING);
+        file = createPackageFile(images);
+        OPFDOMReader dom = new OPFDOMReader(file);
+        OPFReader stax = new OPFReader(file);
+        List<String> domImages = new ArrayList<String>();
+        for (int i = 0; dom.getImageList() != null && i < dom.getImageList().getLength(); i++) {
+            domImages.add(dom.getImageList().item(i).getNodeValue());
+        }
+        boolean same = dom.getTitle().equals(stax.getTitle()) && dom.getPublisher().equals(stax.getPublisher())
+                && dom.getSubject().equals(stax.getSubject()) && dom.getIdentifier().equals(stax.getIdentifier())
+                && dom.getDaisyXML().equals(stax.getDaisyXML()) && domImages.equals(stax.getImages());
+        if (!same) {
+            throw new IllegalStateException(file + ": the readers differ");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public OPFDOMReader domReader() {
+        return new OPFDOMReader(file);
+    }
+
+    @Benchmark
+    public OPFReader staxReader() {
+        return new OPFReader(file);
+    }
+
+    private static File createPackageFile(int imageCount) throws IOException {
+        File file = File.createTempFile("benchmark", ".opf");
+        file.deleteOnExit();
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<!DOCTYPE package PUBLIC \"+//ISBN 0-9673008-1-9//DTD OEB 1.2 Package//EN\" "
+                    + "\"http://openebook.org/dtds/oeb-1.2/oebpkg12.dtd\">\n");
+            out.write("<package unique-identifier=\"uid\">\n<metadata>\n<dc-metadata "
+                    + "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" "
+                    + "xmlns:oebpackage=\"http://openebook.org/namespaces/oeb-package/1.0/\">\n");
+            out.write("<dc:Title>Benchmark Book</dc:Title>\n<dc:Publisher>Benchmark Publisher</dc:Publisher>\n");
+            out.write("<dc:Identifier id=\"uid\">benchmark-1</dc:Identifier>\n<dc:Subject>Testing</dc:Subject>\n");
+            out.write("<dc:Format>NIMAS 1.1</dc:Format>\n</dc-metadata>\n</metadata>\n<manifest>\n");
+            out.write("<item id=\"xml\" href=\"book.xml\" media-type=\"text/xml\"/>\n");
+            for (int i = 0; i < imageCount; i++) {
+                String type = i % 2 == 0 ? "image/png" : "image/jpeg";
+                String extension = i % 2 == 0 ? "png" : "jpg";
+                out.write("<item id=\"img" + i + "\" href=\"images/img" + i + "." + extension + "\" media-type=\""
+                        + type + "\"/>\n");
+            }
+            out.write("</manifest>\n<spine>\n<itemref idref=\"xml\"/>\n</spine>\n</package>\n");
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
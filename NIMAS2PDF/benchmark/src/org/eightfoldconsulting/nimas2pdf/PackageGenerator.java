@@ -0,0 +1,411 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Writes synthetic NIMAS packages, a package file, a DTBook and its images,
+ * of a given size and shape, so that the transform, layout and image paths
+ * can be tested at any scale without publisher content. The same settings
+ * and seed always give the same package.
+ * <p>
+ * The DTBook and the package file refer to the DTBook and OEB package DTDs
+ * by the identifiers XMLEntityResolver maps to xml/dtd. A DTBook with MathML
+ * also declares the MathML module in its internal subset, as NIMAS books do.
+ * Settings, given as name=value:
+ * <ul>
+ * <li>chapters: level1 elements in the body, 10
+ * <li>megabytes: keep adding chapters until the DTBook is this large, 0 for
+ * chapters only
+ * <li>depth: deepest level, 1 to 6, 3
+ * <li>sections: sublevels in every level, 2
+ * <li>paragraphs: paragraphs in every level, 5
+ * <li>sentences: sentences in a paragraph, 5
+ * <li>tables, rows, columns: tables in every chapter and their size, 1, 10, 4
+ * <li>lists, items, listDepth: lists in every chapter, items in a list and
+ * levels of nested lists, 1, 5, 2
+ * <li>pagenumEvery: paragraphs between page numbers, 4
+ * <li>mathml: equations in every chapter, 0
+ * <li>images, imageWidth, imageHeight: distinct image files and their size
+ * in pixels, 4, 600, 400
+ * <li>figures: image references in every chapter, 1
+ * <li>seed: random seed, 1
+ * </ul>
+ *
+ * @author Gregory Buchenberger
+ */
+public class PackageGenerator {
+
+    private static final String MATHML_NAMESPACE = "http://www.w3.org/1998/Math/MathML";
+    private static final String[] WORDS = ("the a of and to in is that it was for on are as with his they at be "
+            + "this from have or by one had not but what all were when we there can an your which their said if do "
+            + "will each about how up out them then she many some so these would other into has more her two like "
+            + "him see time could no make than first been its who now people my made over did down only way find "
+            + "use may water long little very after words called just where most know get through back much before "
+            + "go good new write our used me man too any day same right look think also around another came come "
+            + "work three word must because does part even place well such").split(" ");
+    private Map<String, Integer> settings = new LinkedHashMap<String, Integer>();
+    private Random random;
+    private int page;
+    private int paragraphCount;
+    private int figure;
+
+    /**
+     * Creates a generator with the default settings.
+     */
+    public PackageGenerator() {
+        settings.put("chapters", 10);
+        settings.put("megabytes", 0);
+        settings.put("depth", 3);
+        settings.put("sections", 2);
+        settings.put("paragraphs", 5);
+        settings.put("sentences", 5);
+        settings.put("tables", 1);
+        settings.put("rows", 10);
+        settings.put("columns", 4);
+        settings.put("lists", 1);
+        settings.put("items", 5);
+        settings.put("listDepth", 2);
+        settings.put("pagenumEvery", 4);
+        settings.put("mathml", 0);
+        settings.put("images", 4);
+        settings.put("imageWidth", 600);
+        settings.put("imageHeight", 400);
+        settings.put("figures", 1);
+        settings.put("seed", 1);
+    }
+
+    /**
+     * Writes a package, for example
+     * java -cp benchmarks.jar org.eightfoldconsulting.nimas2pdf.PackageGenerator
+     * /tmp/big megabytes=300 mathml=2
+     * @param args the package directory, then name=value settings
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: PackageGenerator <directory> [name=value ...]");
+            System.exit(2);
+        }
+        PackageGenerator generator = new PackageGenerator();
+        for (int i = 1; i < args.length; i++) {
+            generator.set(args[i]);
+        }
+        long start = System.currentTimeMillis();
+        File opfFile = generator.generate(new File(args[0]));
+        System.out.println(String.format("Wrote %s, %.1f MB of DTBook, %d page numbers, in %.1fs", opfFile.getPath(),
+                new File(opfFile.getParentFile(), "book.xml").length() / (1024.0 * 1024), generator.page - 1,
+                (System.currentTimeMillis() - start) / 1000.0));
+    }
+
+    /**
+     * @param setting name=value, or several separated by commas
+     * @throws IllegalArgumentException if the name is unknown or the value is
+     * not a number
+     */
+    public void set(String setting) {
+        for (String part : setting.split(",")) {
+            int i = part.indexOf('=');
+            String name = i > 0 ? part.substring(0, i).trim() : part.trim();
+            if (!settings.containsKey(name)) {
+                throw new IllegalArgumentException("Unknown setting " + name + ", use one of " + settings.keySet());
+            }
+            settings.put(name, Integer.valueOf(part.substring(i + 1).trim()));
+        }
+        int depth = settings.get("depth");
+        settings.put("depth", Math.max(1, Math.min(6, depth)));
+    }
+
+    /**
+     * Writes book.opf, book.xml and the images to a directory.
+     * @param dir package directory, created if missing
+     * @return the package file
+     * @throws IOException if a file cannot be written
+     */
+    public File generate(File dir) throws IOException {
+        random = new Random(settings.get("seed"));
+        page = 1;
+        paragraphCount = 0;
+        figure = 0;
+        File imageDir = new File(dir, "images");
+        if (!imageDir.isDirectory() && !imageDir.mkdirs()) {
+            throw new IOException("Unable to create " + imageDir.getPath());
+        }
+        for (int i = 0; i < settings.get("images"); i++) {
+            writeImage(new File(imageDir, getImageName(i)), i);
+        }
+        writeDTBook(new File(dir, "book.xml"));
+        File opfFile = new File(dir, "book.opf");
+        writePackageFile(opfFile);
+        return opfFile;
+    }
+
+    private String getImageName(int i) {
+        return "img" + (i + 1) + (i % 2 == 0 ? ".png" : ".jpg");
+    }
+
+    private String getIdentifier() {
+        return "synthetic-" + settings.get("seed");
+    }
+
+    private void writePackageFile(File file) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<!DOCTYPE package PUBLIC \"+//ISBN 0-9673008-1-9//DTD OEB 1.2 Package//EN\" "
+                    + "\"http://openebook.org/dtds/oeb-1.2/oebpkg12.dtd\">\n");
+            out.write("<package unique-identifier=\"uid\">\n  <metadata>\n    <dc-metadata "
+                    + "xmlns:dc=\"http://purl.org/dc/elements/1.1/\" "
+                    + "xmlns:oebpackage=\"http://openebook.org/namespaces/oeb-package/1.0/\">\n");
+            out.write("      <dc:Title>Synthetic Book</dc:Title>\n");
+            out.write("      <dc:Publisher>Eightfold Consulting</dc:Publisher>\n");
+            out.write("      <dc:Identifier id=\"uid\">" + getIdentifier() + "</dc:Identifier>\n");
+            out.write("      <dc:Subject>" + settings + "</dc:Subject>\n");
+            out.write("      <dc:Format>NIMAS 1.1</dc:Format>\n");
+            out.write("      <dc:Language>en-US</dc:Language>\n    </dc-metadata>\n  </metadata>\n  <manifest>\n");
+            out.write("    <item id=\"xml\" href=\"book.xml\" media-type=\"text/xml\"/>\n");
+            for (int i = 0; i < settings.get("images"); i++) {
+                out.write("    <item id=\"img" + (i + 1) + "\" href=\"images/" + getImageName(i) + "\" media-type=\""
+                        + (i % 2 == 0 ? "image/png" : "image/jpeg") + "\"/>\n");
+            }
+            out.write("  </manifest>\n  <spine>\n    <itemref idref=\"xml\"/>\n  </spine>\n</package>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeDTBook(File file) throws IOException {
+        CountingWriter out = new CountingWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 64 * 1024));
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<!DOCTYPE dtbook PUBLIC \"-//NISO//DTD dtbook 2005-3//EN\" \""
+                    + XMLEntityResolver.DTBOOK_DTD + "\"");
+            if (settings.get("mathml") > 0) {
+                out.write(" [\n<!ENTITY % MATHML.prefixed \"INCLUDE\">\n<!ENTITY % MATHML.prefix \"m\">\n"
+                        + "<!ENTITY % mathML2.dtd PUBLIC \"-//W3C//DTD MathML 2.0//EN\" "
+                        + "\"http://www.w3.org/Math/DTD/mathml2/mathml2.dtd\">\n%mathML2.dtd;\n"
+                        + "<!ENTITY % externalFlow \"| m:math\">\n"
+                        + "<!ENTITY % externalNamespaces \"xmlns:m CDATA #FIXED '" + MATHML_NAMESPACE + "'\">\n]");
+            }
+            out.write(">\n<dtbook xmlns=\"http://www.daisy.org/z3986/2005/dtbook/\" version=\"2005-3\" "
+                    + "xml:lang=\"en-US\">\n");
+            out.write("  <head>\n    <meta name=\"dtb:uid\" content=\"" + getIdentifier() + "\"/>\n"
+                    + "    <meta name=\"dc:Title\" content=\"Synthetic Book\"/>\n  </head>\n  <book>\n");
+            out.write("    <frontmatter>\n      <doctitle>Synthetic Book</doctitle>\n"
+                    + "      <docauthor>Eightfold Consulting</docauthor>\n    </frontmatter>\n    <bodymatter>\n");
+            long bytes = settings.get("megabytes") * 1024L * 1024L;
+            for (int chapter = 1; chapter <= settings.get("chapters") || out.count < bytes; chapter++) {
+                writeChapter(out, chapter);
+            }
+            out.write("    </bodymatter>\n  </book>\n</dtbook>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeChapter(Writer out, int chapter) throws IOException {
+        out.write("<level1 id=\"ch" + chapter + "\">\n");
+        writePagenum(out);
+        out.write("<h1>Chapter " + chapter + "</h1>\n");
+        for (int i = 0; i < settings.get("lists"); i++) {
+            writeList(out, 1);
+        }
+        for (int i = 0; i < settings.get("tables"); i++) {
+            writeTable(out, chapter, i + 1);
+        }
+        for (int i = 0; i < settings.get("mathml"); i++) {
+            writeEquation(out);
+        }
+        for (int i = 0; i < settings.get("figures") && settings.get("images") > 0; i++) {
+            writeFigure(out);
+        }
+        writeLevel(out, 1, String.valueOf(chapter));
+        out.write("</level1>\n");
+    }
+
+    private void writeLevel(Writer out, int level, String number) throws IOException {
+        for (int i = 0; i < settings.get("paragraphs"); i++) {
+            out.write("<p>");
+            writeSentences(out, settings.get("sentences"));
+            out.write("</p>\n");
+            if (settings.get("pagenumEvery") > 0 && ++paragraphCount % settings.get("pagenumEvery") == 0) {
+                writePagenum(out);
+            }
+        }
+        if (level < settings.get("depth")) {
+            for (int i = 1; i <= settings.get("sections"); i++) {
+                String subNumber = number + "." + i;
+                int subLevel = level + 1;
+                out.write("<level" + subLevel + "><h" + subLevel + ">Section " + subNumber + "</h" + subLevel + ">\n");
+                writeLevel(out, subLevel, subNumber);
+                out.write("</level" + subLevel + ">\n");
+            }
+        }
+    }
+
+    private void writePagenum(Writer out) throws IOException {
+        out.write("<pagenum id=\"page" + page + "\" page=\"normal\">" + page + "</pagenum>\n");
+        page++;
+    }
+
+    private void writeList(Writer out, int depth) throws IOException {
+        out.write(depth % 2 == 1 ? "<list type=\"ul\">\n" : "<list type=\"ol\">\n");
+        for (int i = 0; i < settings.get("items"); i++) {
+            out.write("<li>");
+            writeSentences(out, 1);
+            if (i == 0 && depth < settings.get("listDepth")) {
+                out.write("\n");
+                writeList(out, depth + 1);
+            }
+            out.write("</li>\n");
+        }
+        out.write("</list>\n");
+    }
+
+    private void writeTable(Writer out, int chapter, int table) throws IOException {
+        out.write("<table>\n<caption>Table " + chapter + "." + table + "</caption>\n<thead><tr>");
+        for (int column = 1; column <= settings.get("columns"); column++) {
+            out.write("<th>Column " + column + "</th>");
+        }
+        out.write("</tr></thead>\n<tbody>\n");
+        for (int row = 0; row < settings.get("rows"); row++) {
+            out.write("<tr>");
+            for (int column = 0; column < settings.get("columns"); column++) {
+                out.write("<td>");
+                if (column == 0) {
+                    out.write(String.valueOf(random.nextInt(10000)));
+                } else {
+                    writeWords(out, 1 + random.nextInt(6));
+                }
+                out.write("</td>");
+            }
+            out.write("</tr>\n");
+        }
+        out.write("</tbody>\n</table>\n");
+    }
+
+    private void writeEquation(Writer out) throws IOException {
+        int a = 1 + random.nextInt(9);
+        int b = 1 + random.nextInt(99);
+        int c = 1 + random.nextInt(99);
+        out.write("<p>Solve for x:</p>\n<m:math xmlns:m=\"" + MATHML_NAMESPACE + "\" display=\"block\"><m:mrow>"
+                + "<m:mi>x</m:mi><m:mo>=</m:mo><m:mfrac><m:mrow><m:mo>-</m:mo><m:mn>" + b + "</m:mn><m:mo>&#177;"
+                + "</m:mo><m:msqrt><m:msup><m:mn>" + b + "</m:mn><m:mn>2</m:mn></m:msup><m:mo>-</m:mo><m:mn>4</m:mn>"
+                + "<m:mo>&#8290;</m:mo><m:mn>" + a + "</m:mn><m:mo>&#8290;</m:mo><m:mn>" + c + "</m:mn></m:msqrt>"
+                + "</m:mrow><m:mrow><m:mn>2</m:mn><m:mo>&#8290;</m:mo><m:mn>" + a + "</m:mn></m:mrow></m:mfrac>"
+                + "</m:mrow></m:math>\n");
+    }
+
+    private void writeFigure(Writer out) throws IOException {
+        int image = figure++ % settings.get("images");
+        out.write("<imggroup>\n<img id=\"fig" + figure + "\" src=\"images/" + getImageName(image)
+                + "\" alt=\"Figure " + figure + "\"/>\n<caption>Figure " + figure + ". ");
+        writeSentences(out, 1);
+        out.write("</caption>\n</imggroup>\n");
+    }
+
+    private void writeSentences(Writer out, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.write(' ');
+            }
+            String first = WORDS[random.nextInt(WORDS.length)];
+            out.write(Character.toUpperCase(first.charAt(0)) + first.substring(1) + " ");
+            writeWords(out, 7 + random.nextInt(12));
+            out.write('.');
+        }
+    }
+
+    private void writeWords(Writer out, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                out.write(' ');
+            }
+            out.write(WORDS[random.nextInt(WORDS.length)]);
+        }
+    }
+
+    private void writeImage(File file, int index) throws IOException {
+        int width = settings.get("imageWidth");
+        int height = settings.get("imageHeight");
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            // a bar chart, different for every image
+            int bars = 12;
+            int barWidth = Math.max(1, (width - 60) / bars);
+            for (int i = 0; i < bars; i++) {
+                int barHeight = (int) ((height - 60) * (0.1 + 0.9 * random.nextDouble()));
+                g.setColor(new Color(Color.HSBtoRGB((index * 0.17f + i * 0.05f) % 1, 0.6f, 0.8f)));
+                g.fillRect(30 + i * barWidth, height - 30 - barHeight, barWidth - Math.min(6, barWidth / 4), barHeight);
+            }
+            g.setColor(Color.BLACK);
+            g.drawLine(30, height - 30, width - 30, height - 30);
+            g.drawLine(30, 30, 30, height - 30);
+        } finally {
+            g.dispose();
+        }
+        if (!ImageIO.write(image, file.getName().endsWith(".png") ? "png" : "jpeg", file)) {
+            throw new IOException("No image writer for " + file.getName());
+        }
+    }
+
+    /**
+     * Counts the characters written, which are bytes for the ASCII text
+     * generated.
+     */
+    private static class CountingWriter extends FilterWriter {
+
+        private long count;
+
+        CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            out.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            count += len;
+        }
+    }
+}
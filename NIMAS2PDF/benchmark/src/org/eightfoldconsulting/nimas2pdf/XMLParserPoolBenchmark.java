@@ -0,0 +1,84 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Templates;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.XMLReader;
+
+/**
+ * Measures the parser and XSLT setup every conversion and every chapter
+ * goes through before the first byte is parsed: looking up the JAXP
+ * factories and creating a parser and a transformer as XMLConverter did
+ * before XMLParserPool, and taking them from the pool. Run with -t to see
+ * the setup under concurrency.
+ *
+ * @author Gregory Buchenberger
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+public class XMLParserPoolBenchmark {
+
+    private Templates xslt;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Properties props = ApplicationProperties.loadDefaults();
+        xslt = TemplatesCache.getTemplates(ApplicationProperties.getStylesheetFile(props));
+    }
+
+    @Benchmark
+    public TransformerHandler newFactories() throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setValidating(false);
+        spf.setNamespaceAware(true);
+        XMLReader reader = spf.newSAXParser().getXMLReader();
+        reader.setEntityResolver(new XMLEntityResolver());
+        DTDGrammarPool.setGrammarPool(reader);
+        SAXTransformerFactory factory = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
+        TransformerHandler handler = factory.newTransformerHandler(xslt);
+        reader.setContentHandler(handler);
+        return handler;
+    }
+
+    @Benchmark
+    public TransformerHandler pooled() throws Exception {
+        XMLReader reader = XMLParserPool.getXMLReader(true);
+        try {
+            TransformerHandler handler = XMLParserPool.getTransformerFactory().newTransformerHandler(xslt);
+            reader.setContentHandler(handler);
+            return handler;
+        } finally {
+            XMLParserPool.release(reader);
+        }
+    }
+}
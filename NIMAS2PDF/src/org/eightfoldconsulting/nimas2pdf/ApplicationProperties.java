@@ -0,0 +1,114 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Properties;
+
+/**
+ * Loads the application settings and locates the installation directory
+ * without touching any AWT or Swing classes, so the conversion pipeline can
+ * be used from both the GUI and the command line.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ApplicationProperties {
+
+    /**
+     * Classpath location of the default settings.
+     */
+    public static final String DEFAULTS_RESOURCE = "org/eightfoldconsulting/nimas2pdf/resources/default.properties";
+
+    private ApplicationProperties() {
+    }
+
+    /**
+     * Loads the default settings from the classpath.
+     * @return the default settings
+     * @throws IOException if the defaults cannot be read
+     */
+    public static Properties loadDefaults() throws IOException {
+        Properties defaultProps = new Properties();
+        InputStream in = ApplicationProperties.class.getClassLoader().getResourceAsStream(DEFAULTS_RESOURCE);
+        if (in == null) {
+            throw new IOException("Default properties not found: " + DEFAULTS_RESOURCE);
+        }
+        try {
+            defaultProps.load(in);
+        } finally {
+            in.close();
+        }
+        return defaultProps;
+    }
+
+    /**
+     * Loads a settings file on top of the default settings.
+     * @param propertiesFile settings file, may be null to use the defaults only
+     * @return the settings backed by the defaults
+     * @throws IOException if either file cannot be read
+     */
+    public static Properties load(File propertiesFile) throws IOException {
+        Properties props = new Properties(loadDefaults());
+        if (propertiesFile != null) {
+            FileInputStream fin = new FileInputStream(propertiesFile);
+            try {
+                props.load(fin);
+            } finally {
+                fin.close();
+            }
+        }
+        return props;
+    }
+
+    /**
+     * @return the per user settings file written by the options dialog
+     */
+    public static File getUserPropertiesFile() {
+        return new File(getUserDir(), "application.properties");
+    }
+
+    /**
+     * @return the per user NIMAS2PDF directory (~/.nimas2pdf)
+     */
+    public static File getUserDir() {
+        return new File(System.getProperty("user.home"), ".nimas2pdf");
+    }
+
+    /**
+     * Returns the directory holding the application jar, which is where the
+     * conf and xml directories are installed.
+     * @return the decoded installation directory path
+     */
+    public static String getJarDirPath() {
+        File jarFile = new File(ApplicationProperties.class.getProtectionDomain().getCodeSource().getLocation().getPath());
+        try {
+            return URLDecoder.decode(jarFile.getParent(), "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            return jarFile.getParent();
+        }
+    }
+
+    /**
+     * Resolves the configured stylesheet in the installation directory.
+     * @param props application settings
+     * @return the XSLT file
+     */
+    public static File getStylesheetFile(Properties props) {
+        return new File(getJarDirPath(), "xml/xslt/" + props.getProperty("stylesheet"));
+    }
+}
@@ -0,0 +1,162 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Converts many NIMAS packages concurrently on a fixed size pool of worker
+ * threads. A failing package is recorded on its job and does not affect the
+ * other packages in the batch.
+ *
+ * @author Gregory Buchenberger
+ */
+public class BatchConverter {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+    private int threads;
+    // threads of the last run, no more than there were jobs
+    private int poolSize;
+    private List<ConversionJob> jobs = new ArrayList<ConversionJob>();
+    private long elapsedMillis;
+
+    /**
+     *
+     * @param threads maximum number of packages converted at the same time
+     */
+    public BatchConverter(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Queues a package for conversion.
+     * @param job
+     */
+    public void add(ConversionJob job) {
+        jobs.add(job);
+    }
+
+    /**
+     * Converts all queued packages and waits for them to finish.
+     * @throws InterruptedException if interrupted while waiting, unfinished
+     * jobs are cancelled
+     */
+    public void run() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        poolSize = Math.min(threads, Math.max(1, jobs.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize, new WorkerThreadFactory());
+        try {
+            for (final ConversionJob job : jobs) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        convert(job);
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info(getProgress());
+            }
+        } finally {
+            executor.shutdownNow();
+            elapsedMillis = System.currentTimeMillis() - start;
+        }
+    }
+
+    private void convert(ConversionJob job) {
+        String name = job.getOpfFile().getPath();
+        logger.info("Starting " + name);
+        try {
+            job.run();
+            logger.info("Finished " + name + " in " + formatSeconds(job.getElapsedMillis())
+                    + ", " + job.getPageCount() + " pages");
+        } catch (Throwable ex) {
+            // isolate the failure to this package
+            job.setError(ex);
+            logger.severe("Conversion of " + name + " failed: " + ex);
+        }
+    }
+
+    /**
+     * @return the queued jobs with their status
+     */
+    public List<ConversionJob> getJobs() {
+        return jobs;
+    }
+
+    /**
+     * @return number of jobs that failed
+     */
+    public int getFailureCount() {
+        return count(ConversionJob.Status.FAILED);
+    }
+
+    private int count(ConversionJob.Status status) {
+        int n = 0;
+        for (ConversionJob job : jobs) {
+            if (job.getStatus() == status) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private String getProgress() {
+        return count(ConversionJob.Status.SUCCEEDED) + " succeeded, "
+                + count(ConversionJob.Status.FAILED) + " failed, "
+                + count(ConversionJob.Status.RUNNING) + " running, "
+                + count(ConversionJob.Status.PENDING) + " pending";
+    }
+
+    /**
+     * Summarizes the last run, including throughput figures based on the page
+     * counts reported by FOP.
+     * @return a one line summary
+     */
+    public String getSummary() {
+        int pages = 0;
+        for (ConversionJob job : jobs) {
+            if (job.getStatus() == ConversionJob.Status.SUCCEEDED) {
+                pages += job.getPageCount();
+            }
+        }
+        int succeeded = count(ConversionJob.Status.SUCCEEDED);
+        double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+        return String.format("Converted %d of %d packages (%d failed) using %d threads in %s: %d pages, %.1f books/hour, %.2f pages/sec",
+                succeeded, jobs.size(), getFailureCount(), poolSize, formatSeconds(elapsedMillis),
+                pages, succeeded * 3600.0 / seconds, pages / seconds);
+    }
+
+    private static String formatSeconds(long millis) {
+        return String.format("%.1fs", millis / 1000.0);
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "nimas2pdf-worker-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,289 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads a DTBook and computes a content hash for each page sequence the
+ * chapter-page-sequences template in layout.xsl generates: one for the front
+ * matter titles, if any, and one per level1 (or level) of the front, body
+ * and rear matter.
+ * <p>
+ * A hash covers the markup and text of the chapter, the size and date of the
+ * images it references, the print page number carried over from the
+ * preceding chapter and its position in the book, which the ids of its
+ * elements are made of (see the id template in structure.xsl), that is
+ * everything the chapter's layout depends on besides the stylesheet and its
+ * parameters.
+ * <p>
+ * Links between chapters are rendered with the help of ChapterLinkFilter,
+ * so the hash also covers the ids of the chapter other chapters link to and
+ * the ids in other chapters it links to.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ChapterDigester extends DefaultHandler {
+
+    private File baseDir;
+    private int depth;
+    private boolean inBook;
+    private boolean inFrontmatter;
+    private Chapter titles;
+    private List<Chapter> chapters = new ArrayList<Chapter>();
+    // the chapter being read, null outside of chapters
+    private Chapter current;
+    private StringBuilder pagenum;
+    private String lastPagenum = "";
+    // element positions among their siblings, by depth
+    private int[] position = new int[5];
+    private Map<String, Integer> linkTargets = new HashMap<String, Integer>();
+
+    /**
+     * The hash and the ends of internal links of one page sequence.
+     */
+    private static class Chapter {
+
+        MessageDigest digest;
+        // ids and anchor names
+        Set<String> ids = new HashSet<String>();
+        // ids the noteref and a elements point to
+        Set<String> refs = new HashSet<String>();
+
+        Chapter(MessageDigest digest) {
+            this.digest = digest;
+        }
+    }
+
+    /**
+     *
+     * @param baseDir directory images are resolved against
+     */
+    public ChapterDigester(File baseDir) {
+        this.baseDir = baseDir;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) {
+        depth++;
+        if (depth < position.length) {
+            position[depth]++;
+            if (depth + 1 < position.length) {
+                position[depth + 1] = 0;
+            }
+        }
+        if (depth == 2) {
+            inBook = localName.equals("book");
+        } else if (depth == 3 && inBook) {
+            inFrontmatter = localName.equals("frontmatter");
+        } else if (depth == 4 && inBook) {
+            if (localName.equals("level1") || localName.equals("level")) {
+                current = newChapter();
+                chapters.add(current);
+            } else if (inFrontmatter) {
+                if (titles == null) {
+                    titles = newChapter();
+                }
+                current = titles;
+            } else {
+                // not part of any page sequence
+                current = null;
+            }
+        }
+        if (localName.equals("pagenum")) {
+            pagenum = new StringBuilder();
+        }
+        if (current != null) {
+            update("<" + localName);
+            for (int i = 0; i < atts.getLength(); i++) {
+                update(" " + atts.getLocalName(i) + "=" + atts.getValue(i));
+            }
+            if (localName.equals("img") && atts.getValue("src") != null) {
+                File image = new File(baseDir, atts.getValue("src"));
+                update(" @" + image.length() + "/" + image.lastModified());
+            }
+            update(">");
+            if (depth == 4) {
+                update("@" + position[2] + "." + position[3] + "." + position[4]);
+            }
+            addLinkEnds(localName, atts);
+        }
+    }
+
+    /**
+     * Collects the link ends inline.xsl turns into FO ids and internal
+     * destinations.
+     */
+    private void addLinkEnds(String localName, Attributes atts) {
+        if (atts.getValue("id") != null) {
+            current.ids.add(atts.getValue("id"));
+        }
+        if (localName.equals("noteref") && atts.getValue("idref") != null) {
+            current.refs.add(atts.getValue("idref"));
+        } else if (localName.equals("a")) {
+            String href = atts.getValue("href");
+            if (atts.getValue("name") != null) {
+                current.ids.add(atts.getValue("name"));
+            } else if (href != null && href.startsWith("#") && !"true".equals(atts.getValue("external"))) {
+                current.refs.add(href.substring(1));
+            }
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        if (current != null) {
+            update(new String(ch, start, length));
+        }
+        if (pagenum != null) {
+            pagenum.append(ch, start, length);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) {
+        if (current != null) {
+            update("</" + localName + ">");
+        }
+        if (localName.equals("pagenum") && pagenum != null) {
+            lastPagenum = pagenum.toString().trim();
+            pagenum = null;
+        }
+        if (depth == 4) {
+            current = null;
+        }
+        depth--;
+    }
+
+    @Override
+    public void endDocument() {
+        List<Chapter> sequences = getSequences();
+        Map<String, Integer> owners = new HashMap<String, Integer>();
+        for (int i = sequences.size() - 1; i >= 0; i--) {
+            for (String id : sequences.get(i).ids) {
+                owners.put(id, i);
+            }
+        }
+        for (int i = 0; i < sequences.size(); i++) {
+            for (String ref : sequences.get(i).refs) {
+                Integer owner = owners.get(ref);
+                if (owner != null && owner != i) {
+                    linkTargets.put(ref, owner);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of page sequences in chapter mode
+     */
+    public int getCount() {
+        return chapters.size() + (titles != null ? 1 : 0);
+    }
+
+    /**
+     * @return the ids internal links of another page sequence point to, each
+     * with the index, from 0, of the page sequence it is found in
+     */
+    public Map<String, Integer> getLinkTargets() {
+        return linkTargets;
+    }
+
+    /**
+     * Completes the hashes, call once after parsing.
+     * @param fingerprint settings the layout of all chapters depends on
+     * @return one hex encoded hash per page sequence, in document order
+     */
+    public List<String> getDigests(String fingerprint) {
+        List<Chapter> sequences = getSequences();
+        List<String> result = new ArrayList<String>();
+        for (int i = 0; i < sequences.size(); i++) {
+            Chapter chapter = sequences.get(i);
+            // the destinations ChapterLinkFilter adds and the links it rewrites
+            Set<String> links = new TreeSet<String>();
+            for (String id : chapter.ids) {
+                if (linkTargets.containsKey(id)) {
+                    links.add("#" + id);
+                }
+            }
+            for (String ref : chapter.refs) {
+                if (linkTargets.containsKey(ref) && linkTargets.get(ref) != i) {
+                    links.add(ref);
+                }
+            }
+            update(chapter.digest, "\u0000" + links);
+            // only the first page sequence starts with the cover page
+            update(chapter.digest, "\u0000" + (i == 0) + "\u0000" + fingerprint);
+            result.add(toHex(chapter.digest.digest()));
+        }
+        return result;
+    }
+
+    private List<Chapter> getSequences() {
+        List<Chapter> sequences = new ArrayList<Chapter>();
+        if (titles != null) {
+            sequences.add(titles);
+        }
+        sequences.addAll(chapters);
+        return sequences;
+    }
+
+    private Chapter newChapter() {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        // the footer shows this page number until the chapter's first pagenum
+        update(digest, lastPagenum + "\u0000");
+        return new Chapter(digest);
+    }
+
+    private void update(String s) {
+        update(current.digest, s);
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        try {
+            digest.update(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @param bytes
+     * @return lower case hex representation
+     */
+    public static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
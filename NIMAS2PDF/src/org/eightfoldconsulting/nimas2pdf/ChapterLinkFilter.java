@@ -0,0 +1,100 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Sits in front of FOP while a single chapter is rendered and keeps its
+ * links to other chapters, which FOP drops as their ids are not part of the
+ * chapter's FO.
+ * <p>
+ * A basic-link to an id of another chapter becomes a link to the URI
+ * LINK_PREFIX + id, and every id of the chapter other chapters link to gets
+ * a fox:destination, so that its position is written to the intermediate
+ * format. ChapterMerger points the links at these positions.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ChapterLinkFilter extends XMLFilterImpl {
+
+    /**
+     * Starts the URI of a link to another chapter, followed by the id.
+     */
+    public static final String LINK_PREFIX = "#";
+    private static final String FOX_NAMESPACE = "http://xmlgraphics.apache.org/fop/extensions";
+    // ids of other chapters
+    private Set<String> external = new HashSet<String>();
+    // ids of this chapter
+    private List<String> destinations = new ArrayList<String>();
+    private boolean destinationsAdded;
+
+    /**
+     *
+     * @param handler handler passing the events on to FOP
+     * @param linkTargets see ChapterDigester.getLinkTargets
+     * @param sequence index, from 0, of the page sequence rendered
+     */
+    public ChapterLinkFilter(ContentHandler handler, Map<String, Integer> linkTargets, int sequence) {
+        setContentHandler(handler);
+        for (Map.Entry<String, Integer> target : linkTargets.entrySet()) {
+            if (target.getValue() == sequence) {
+                destinations.add(target.getKey());
+            } else {
+                external.add(target.getKey());
+            }
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (ImageURIFilter.FO_NAMESPACE.equals(uri) && localName.equals("page-sequence") && !destinationsAdded) {
+            // FOP takes up the destinations declared before a page sequence
+            addDestinations();
+            destinationsAdded = true;
+        }
+        int index = atts.getIndex("", "internal-destination");
+        if (index >= 0 && ImageURIFilter.FO_NAMESPACE.equals(uri) && localName.equals("basic-link")
+                && external.contains(atts.getValue(index))) {
+            AttributesImpl link = new AttributesImpl(atts);
+            link.removeAttribute(index);
+            link.addAttribute("", "external-destination", "external-destination", "CDATA",
+                    LINK_PREFIX + atts.getValue(index));
+            atts = link;
+        }
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    private void addDestinations() throws SAXException {
+        if (destinations.isEmpty()) {
+            return;
+        }
+        super.startPrefixMapping("fox", FOX_NAMESPACE);
+        for (String id : destinations) {
+            AttributesImpl atts = new AttributesImpl();
+            atts.addAttribute("", "internal-destination", "internal-destination", "CDATA", id);
+            super.startElement(FOX_NAMESPACE, "destination", "fox:destination", atts);
+            super.endElement(FOX_NAMESPACE, "destination", "fox:destination");
+        }
+        super.endPrefixMapping("fox");
+    }
+}
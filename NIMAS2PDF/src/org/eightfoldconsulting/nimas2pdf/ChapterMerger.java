@@ -0,0 +1,296 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFDocumentNavigationHandler;
+import org.apache.fop.render.intermediate.IFException;
+import org.apache.fop.render.intermediate.IFParser;
+import org.apache.fop.render.intermediate.extensions.AbstractAction;
+import org.apache.fop.render.intermediate.extensions.Bookmark;
+import org.apache.fop.render.intermediate.extensions.BookmarkTree;
+import org.apache.fop.render.intermediate.extensions.GoToXYAction;
+import org.apache.fop.render.intermediate.extensions.Link;
+import org.apache.fop.render.intermediate.extensions.NamedDestination;
+import org.apache.fop.render.intermediate.extensions.URIAction;
+import org.apache.fop.render.intermediate.util.IFDocumentHandlerProxy;
+import org.apache.xmlgraphics.xmp.Metadata;
+import org.apache.xmlgraphics.xmp.schemas.XMPBasicAdapter;
+import org.apache.xmlgraphics.xmp.schemas.XMPBasicSchema;
+
+/**
+ * Joins chapters rendered separately to FOP's intermediate format into one
+ * document.
+ * <p>
+ * Unlike FOP's IFConcatenator the pages are renumbered across chapters and
+ * the bookmarks and links of every chapter are kept, with their page
+ * references moved to the page the chapter starts on. The document header,
+ * and with it the XMP metadata, is taken from the first chapter. As the
+ * chapters may have been rendered at an earlier time, its dates are reset.
+ * <p>
+ * Links to other chapters come as URI links and their targets as named
+ * destinations, see ChapterLinkFilter. The destinations are collected
+ * rather than written, and the links point at them, or are resolved once the
+ * chapter with the target is merged. A link to an id FOP did not find in its
+ * chapter, which a single pass render drops, points at the first page of
+ * that chapter.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ChapterMerger {
+
+    private IFDocumentHandler target;
+    private FOUserAgent userAgent;
+    private BookmarkTree bookmarkTree = new BookmarkTree();
+    private int chapterCount;
+    private int pageCount;
+    private Map<String, Integer> linkTargets;
+    // first page of each chapter merged
+    private List<Integer> chapterStarts = new ArrayList<Integer>();
+    private Map<String, GoToXYAction> destinations = new HashMap<String, GoToXYAction>();
+    // targets of links written before their chapter was merged
+    private Set<String> pending = new HashSet<String>();
+
+    /**
+     *
+     * @param target handler producing the final document, its result must be set
+     * @param userAgent
+     * @param linkTargets see ChapterDigester.getLinkTargets
+     */
+    public ChapterMerger(IFDocumentHandler target, FOUserAgent userAgent, Map<String, Integer> linkTargets) {
+        this.target = target;
+        this.userAgent = userAgent;
+        this.linkTargets = linkTargets;
+    }
+
+    /**
+     * Appends the pages of the next chapter.
+     * @param chapter intermediate format document
+     * @throws TransformerException
+     * @throws IFException
+     */
+    public void appendChapter(Source chapter) throws TransformerException, IFException {
+        chapterStarts.add(pageCount);
+        new IFParser().parse(chapter, new ChapterFilter(target, pageCount, chapterCount == 0), userAgent);
+        chapterCount++;
+    }
+
+    /**
+     * Writes the combined bookmarks and ends the document.
+     * @throws IFException
+     */
+    public void finish() throws IFException {
+        if (chapterCount == 0) {
+            throw new IFException("No chapters to merge", null);
+        }
+        IFDocumentNavigationHandler navigation = target.getDocumentNavigationHandler();
+        if (navigation != null) {
+            for (String id : pending) {
+                navigation.addResolvedAction(new GoToXYAction(id, chapterStarts.get(linkTargets.get(id)),
+                        new Point()));
+            }
+        }
+        target.startDocumentTrailer();
+        if (navigation != null && !bookmarkTree.getBookmarks().isEmpty()) {
+            navigation.renderBookmarkTree(bookmarkTree);
+        }
+        target.endDocumentTrailer();
+        target.endDocument();
+    }
+
+    /**
+     * @return number of pages merged so far
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Passes the pages of one chapter on to the target, shifting page indexes
+     * by the pages of the preceding chapters.
+     */
+    private class ChapterFilter extends IFDocumentHandlerProxy implements IFDocumentNavigationHandler {
+
+        private int pageOffset;
+        private boolean first;
+        private boolean inHeader;
+
+        ChapterFilter(IFDocumentHandler delegate, int pageOffset, boolean first) {
+            super(delegate);
+            this.pageOffset = pageOffset;
+            this.first = first;
+        }
+
+        @Override
+        public void startDocument() throws IFException {
+            if (first) {
+                super.startDocument();
+            }
+        }
+
+        @Override
+        public void startDocumentHeader() throws IFException {
+            inHeader = true;
+            if (first) {
+                super.startDocumentHeader();
+            }
+        }
+
+        @Override
+        public void endDocumentHeader() throws IFException {
+            inHeader = false;
+            if (first) {
+                super.endDocumentHeader();
+            }
+        }
+
+        @Override
+        public void handleExtensionObject(Object extension) throws IFException {
+            if (first && inHeader && extension instanceof Metadata) {
+                Date date = userAgent.getCreationDate() != null ? userAgent.getCreationDate() : new Date();
+                XMPBasicAdapter basic = XMPBasicSchema.getAdapter((Metadata) extension);
+                basic.setCreateDate(date);
+                basic.setMetadataDate(date);
+            }
+            if (first || !inHeader) {
+                super.handleExtensionObject(extension);
+            }
+        }
+
+        @Override
+        public void startPage(int index, String name, String pageMasterName, Dimension size) throws IFException {
+            // page names are the page numbers of a single document
+            int pageIndex = pageOffset + index;
+            super.startPage(pageIndex, String.valueOf(pageIndex + 1), pageMasterName, size);
+            pageCount = Math.max(pageCount, pageIndex + 1);
+        }
+
+        @Override
+        public void startDocumentTrailer() throws IFException {
+            // the trailer is written by finish()
+        }
+
+        @Override
+        public void endDocumentTrailer() throws IFException {
+        }
+
+        @Override
+        public void endDocument() throws IFException {
+        }
+
+        @Override
+        public IFDocumentNavigationHandler getDocumentNavigationHandler() {
+            return this;
+        }
+
+        public void renderNamedDestination(NamedDestination destination) throws IFException {
+            IFDocumentNavigationHandler navigation = delegate.getDocumentNavigationHandler();
+            if (linkTargets.containsKey(destination.getName())
+                    && destination.getAction() instanceof GoToXYAction) {
+                GoToXYAction action = (GoToXYAction) shift(destination.getAction());
+                destinations.put(destination.getName(), action);
+                if (pending.remove(destination.getName()) && navigation != null) {
+                    navigation.addResolvedAction(action);
+                }
+            } else if (navigation != null) {
+                navigation.renderNamedDestination(new NamedDestination(destination.getName(),
+                        shift(destination.getAction())));
+            }
+        }
+
+        public void renderBookmarkTree(BookmarkTree tree) throws IFException {
+            for (Iterator<?> it = tree.getBookmarks().iterator(); it.hasNext();) {
+                bookmarkTree.addBookmark(shift((Bookmark) it.next()));
+            }
+        }
+
+        public void renderLink(Link link) throws IFException {
+            IFDocumentNavigationHandler navigation = delegate.getDocumentNavigationHandler();
+            AbstractAction action = link.getAction();
+            if (action instanceof URIAction) {
+                action = getChapterLink(((URIAction) action).getURI(), action);
+            } else {
+                action = shift(action);
+            }
+            if (navigation != null) {
+                navigation.renderLink(new Link(action, link.getTargetRect()));
+            }
+        }
+
+        /**
+         * @return the action of a link to another chapter, or else the URI
+         * action
+         */
+        private AbstractAction getChapterLink(String uri, AbstractAction action) {
+            if (!uri.startsWith(ChapterLinkFilter.LINK_PREFIX)) {
+                return action;
+            }
+            String id = uri.substring(ChapterLinkFilter.LINK_PREFIX.length());
+            Integer chapter = linkTargets.get(id);
+            if (chapter == null) {
+                return action;
+            } else if (destinations.containsKey(id)) {
+                return destinations.get(id);
+            } else if (chapter < chapterStarts.size()) {
+                return new GoToXYAction(id, chapterStarts.get(chapter), new Point());
+            }
+            pending.add(id);
+            return new GoToXYAction(id);
+        }
+
+        public void addResolvedAction(AbstractAction action) throws IFException {
+            IFDocumentNavigationHandler navigation = delegate.getDocumentNavigationHandler();
+            if (navigation != null) {
+                navigation.addResolvedAction(shift(action));
+            }
+        }
+
+        private Bookmark shift(Bookmark bookmark) {
+            Bookmark shifted = new Bookmark(bookmark.getTitle(), bookmark.isShown(), shift(bookmark.getAction()));
+            for (Iterator<?> it = bookmark.getChildBookmarks().iterator(); it.hasNext();) {
+                shifted.addChildBookmark(shift((Bookmark) it.next()));
+            }
+            return shifted;
+        }
+
+        private AbstractAction shift(AbstractAction action) {
+            if (!(action instanceof GoToXYAction)) {
+                return action;
+            }
+            GoToXYAction goTo = (GoToXYAction) action;
+            GoToXYAction shifted;
+            if (goTo.getPageIndex() < 0) {
+                // not resolved yet, addResolvedAction follows
+                shifted = new GoToXYAction(goTo.getID());
+            } else {
+                shifted = new GoToXYAction(goTo.getID(), pageOffset + goTo.getPageIndex(),
+                        goTo.getTargetLocation());
+            }
+            shifted.setStructurePointer(goTo.getStructurePointer());
+            return shifted;
+        }
+    }
+}
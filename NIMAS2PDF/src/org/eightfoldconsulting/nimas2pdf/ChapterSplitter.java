@@ -0,0 +1,263 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads a DTBook once and splits it into one document per page sequence the
+ * chapter-page-sequences template in layout.xsl generates, see
+ * ChapterDigester, so that a chapter is transformed without the rest of the
+ * book.
+ * <p>
+ * A slice keeps the head and the structure of the book, and in full only
+ * the elements of the front, body and rear matter that make up its page
+ * sequence. The other elements of the matter are left empty but for their
+ * last pagenum: the stylesheet still counts them, so the elements of the
+ * slice get the same ids as in the whole book, and the print page number
+ * carried over from the preceding chapter does not change.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ChapterSplitter extends DefaultHandler {
+
+    // owners of the parts of the book, besides the index of a chapter
+    private static final int ALL = -1;
+    private static final int NONE = -2;
+    private static final int TITLES = -3;
+
+    private List<Part> parts = new ArrayList<Part>();
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private Writer out;
+    private StringBuilder namespaces = new StringBuilder();
+    private int depth;
+    private boolean inBook;
+    private boolean inFrontmatter;
+    private int chapters;
+    private boolean hasTitles;
+    // the element of the matter being read, null outside of them
+    private int owner;
+    private String startTag;
+    private StringBuilder pagenum;
+    private String lastPagenum;
+
+    /**
+     * A piece of the serialized book.
+     */
+    private static class Part {
+
+        int owner;
+        byte[] markup;
+        // what the slices of the other page sequences get instead, if anything
+        byte[] placeholder;
+
+        Part(int owner, byte[] markup, byte[] placeholder) {
+            this.owner = owner;
+            this.markup = markup;
+            this.placeholder = placeholder;
+        }
+    }
+
+    public ChapterSplitter() {
+        try {
+            out = new OutputStreamWriter(buffer, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) {
+        namespaces.append(prefix.length() == 0 ? " xmlns" : " xmlns:" + prefix);
+        namespaces.append("=\"").append(escape(uri, true)).append('"');
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        depth++;
+        if (depth == 2) {
+            inBook = localName.equals("book");
+        } else if (depth == 3 && inBook) {
+            inFrontmatter = localName.equals("frontmatter");
+        } else if (depth == 4 && inBook) {
+            if (localName.equals("level1") || localName.equals("level")) {
+                owner = chapters++;
+            } else if (inFrontmatter) {
+                hasTitles = true;
+                owner = TITLES;
+            } else {
+                owner = NONE;
+            }
+            parts.add(new Part(ALL, takeMarkup(), null));
+            lastPagenum = null;
+        }
+        StringBuilder tag = new StringBuilder("<").append(qName).append(namespaces);
+        namespaces.setLength(0);
+        for (int i = 0; i < atts.getLength(); i++) {
+            tag.append(' ').append(atts.getQName(i));
+            tag.append("=\"").append(escape(atts.getValue(i), true)).append('"');
+        }
+        tag.append('>');
+        if (depth == 4 && inBook) {
+            startTag = tag.toString();
+        }
+        if (depth > 4 && startTag != null && localName.equals("pagenum")) {
+            pagenum = new StringBuilder();
+        }
+        write(tag.toString());
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        write(escape(new String(ch, start, length), false));
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        write("<?" + target + " " + data + "?>");
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        write("</" + qName + ">");
+        if (pagenum != null && localName.equals("pagenum")) {
+            lastPagenum = pagenum.toString();
+            pagenum = null;
+        }
+        if (depth == 4 && startTag != null) {
+            byte[] markup = takeMarkup();
+            byte[] placeholder = markup;
+            if (!localName.equals("pagenum")) {
+                placeholder = toBytes(startTag + (lastPagenum != null ? lastPagenum : "") + "</" + qName + ">");
+            }
+            parts.add(new Part(owner, markup, placeholder));
+            startTag = null;
+        }
+        depth--;
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        parts.add(new Part(ALL, takeMarkup(), null));
+    }
+
+    /**
+     * @return number of page sequences in chapter mode
+     */
+    public int getCount() {
+        return chapters + (hasTitles ? 1 : 0);
+    }
+
+    /**
+     * @param chapterIndex page sequence, from 1 as the chapterIndex
+     * parameter of the stylesheet
+     * @return the DTBook of the page sequence, UTF-8 encoded and without a
+     * DOCTYPE, the attribute defaults of the DTD are filled in
+     */
+    public InputStream getSlice(int chapterIndex) {
+        int sequence;
+        if (hasTitles) {
+            sequence = chapterIndex == 1 ? TITLES : chapterIndex - 2;
+        } else {
+            sequence = chapterIndex - 1;
+        }
+        List<InputStream> streams = new ArrayList<InputStream>();
+        for (Part part : parts) {
+            boolean full = part.owner == ALL || part.owner == sequence;
+            streams.add(new ByteArrayInputStream(full ? part.markup : part.placeholder));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    private void write(String s) throws SAXException {
+        try {
+            out.write(s);
+        } catch (IOException ex) {
+            throw new SAXException(ex);
+        }
+        if (pagenum != null) {
+            pagenum.append(s);
+        }
+    }
+
+    private byte[] takeMarkup() throws SAXException {
+        try {
+            out.flush();
+        } catch (IOException ex) {
+            throw new SAXException(ex);
+        }
+        byte[] markup = buffer.toByteArray();
+        buffer.reset();
+        return markup;
+    }
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String escape(String s, boolean attribute) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String ref = null;
+            if (c == '&') {
+                ref = "&amp;";
+            } else if (c == '<') {
+                ref = "&lt;";
+            } else if (c == '>') {
+                ref = "&gt;";
+            } else if (c == '\r') {
+                ref = "&#13;";
+            } else if (attribute && c == '"') {
+                ref = "&quot;";
+            } else if (attribute && c == '\n') {
+                ref = "&#10;";
+            } else if (attribute && c == '\t') {
+                ref = "&#9;";
+            }
+            if (ref != null && sb == null) {
+                sb = new StringBuilder(s.length() + 16).append(s, 0, i);
+            }
+            if (sb != null) {
+                if (ref != null) {
+                    sb.append(ref);
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb != null ? sb.toString() : s;
+    }
+}
@@ -0,0 +1,336 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Command line entry point converting NIMAS packages without the Swing user
+ * interface. Never loads AWT or Swing classes, so it is suited to headless
+ * batch servers.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ConsoleMain {
+
+    private static Logger logger = Logger.getLogger(ConsoleMain.class.getName());
+
+    private static final String USAGE =
+            "Usage: java -cp NIMAS2PDF.jar org.eightfoldconsulting.nimas2pdf.ConsoleMain [options] <package.opf|directory>...\n"
+            + "Options:\n"
+            + "  -settings <file>     settings file (default ~/.nimas2pdf/application.properties if present)\n"
+            + "  -out <directory>     output directory (default: the package directory)\n"
+            + "  -source nimas|fo     source format (default nimas); fo reads <identifier>.fo or .fo.gz from the package directory\n"
+            + "  -render pdf|fo|both  render format (default pdf), both writes XSL-FO and PDF in one pass\n"
+            + "  -threads <n>         packages converted concurrently (default: number of processors,\n"
+            + "                       at most one per 256 MB of maximum heap)\n"
+            + "  -chapter-threads <n> chapters of one package rendered concurrently (default: chapterThreads setting)\n"
+            + "  -incremental         only render the chapters changed since the last conversion\n"
+            + "  -cache               copy results of unchanged packages from the output cache\n"
+            + "  -compress-fo         write XSL-FO gzip compressed as <identifier>.fo.gz\n"
+            + "  -rebuild-font-cache  search the font directories again instead of using ~/.nimas2pdf/fonts.cache\n"
+            + "  -profile <file>      write the time and allocations of every stage of every package to a CSV file,\n"
+            + "                       and of each package to <identifier>.profile.csv next to its result\n"
+            + "  -progress <seconds>  log the progress of each package this often, 0 for never\n"
+            + "                       (default: progressInterval setting)\n"
+            + "Directories are searched recursively for *.opf package files.";
+
+    private File settingsFile;
+    private File outputDir;
+    private String source = "nimas";
+    private String render = "pdf";
+    /**
+     * Heap a package may take while it converts, its DTM and FOP's area tree.
+     */
+    private static final long MEMORY_PER_THREAD = 256L * 1024 * 1024;
+    private int threads = getDefaultThreads();
+    private int chapterThreads;
+    private boolean incremental;
+    private boolean cache;
+    private boolean rebuildFontCache;
+    private boolean compressFO;
+    private File profileFile;
+    private int progressInterval = -1;
+    private List<File> packages = new ArrayList<File>();
+
+    private ConsoleMain() {
+    }
+
+    /**
+     *
+     * @param args
+     */
+    public static void main(String args[]) {
+        System.setProperty("java.awt.headless", "true");
+        ConsoleMain main = new ConsoleMain();
+        if (!main.parseArgs(args)) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        System.exit(main.run());
+    }
+
+    /**
+     * @return the number of processors, fewer if the heap would not hold a
+     * package converting on each
+     */
+    private static int getDefaultThreads() {
+        Runtime runtime = Runtime.getRuntime();
+        int byMemory = (int) Math.max(1, runtime.maxMemory() / MEMORY_PER_THREAD);
+        return Math.min(runtime.availableProcessors(), byMemory);
+    }
+
+    private boolean parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-settings") && i + 1 < args.length) {
+                settingsFile = new File(args[++i]);
+            } else if (arg.equals("-out") && i + 1 < args.length) {
+                outputDir = new File(args[++i]);
+            } else if (arg.equals("-source") && i + 1 < args.length) {
+                source = args[++i];
+            } else if (arg.equals("-render") && i + 1 < args.length) {
+                render = args[++i];
+            } else if (arg.equals("-threads") && i + 1 < args.length) {
+                try {
+                    threads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException ex) {
+                    threads = 0;
+                }
+                if (threads < 1) {
+                    System.err.println("Invalid thread count " + args[i]);
+                    return false;
+                }
+            } else if (arg.equals("-chapter-threads") && i + 1 < args.length) {
+                try {
+                    chapterThreads = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException ex) {
+                    chapterThreads = 0;
+                }
+                if (chapterThreads < 1) {
+                    System.err.println("Invalid chapter thread count " + args[i]);
+                    return false;
+                }
+            } else if (arg.equals("-incremental")) {
+                incremental = true;
+            } else if (arg.equals("-cache")) {
+                cache = true;
+            } else if (arg.equals("-compress-fo")) {
+                compressFO = true;
+            } else if (arg.equals("-rebuild-font-cache")) {
+                rebuildFontCache = true;
+            } else if (arg.equals("-profile") && i + 1 < args.length) {
+                profileFile = new File(args[++i]);
+            } else if (arg.equals("-progress") && i + 1 < args.length) {
+                try {
+                    progressInterval = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException ex) {
+                    progressInterval = -1;
+                }
+                if (progressInterval < 0) {
+                    System.err.println("Invalid progress interval " + args[i]);
+                    return false;
+                }
+            } else if (arg.startsWith("-")) {
+                System.err.println("Unknown option " + arg);
+                return false;
+            } else {
+                packages.add(new File(arg));
+            }
+        }
+        if (!source.equals("nimas") && !source.equals("fo")) {
+            System.err.println("Unknown source format " + source);
+            return false;
+        }
+        if (!render.equals("pdf") && !render.equals("fo") && !render.equals("both")) {
+            System.err.println("Unknown render format " + render);
+            return false;
+        }
+        if (source.equals("fo") && !render.equals("pdf")) {
+            System.err.println("XSL-FO can only be rendered to PDF");
+            return false;
+        }
+        return !packages.isEmpty();
+    }
+
+    private ConversionJob.Mode getMode() {
+        if (source.equals("fo")) {
+            return ConversionJob.Mode.FO2PDF;
+        } else if (render.equals("fo")) {
+            return ConversionJob.Mode.NIMAS2FO;
+        } else if (render.equals("both")) {
+            return ConversionJob.Mode.NIMAS2FOPDF;
+        }
+        return ConversionJob.Mode.NIMAS2PDF;
+    }
+
+    private Properties loadSettings() throws IOException {
+        if (settingsFile != null) {
+            return ApplicationProperties.load(settingsFile);
+        }
+        File userFile = ApplicationProperties.getUserPropertiesFile();
+        return ApplicationProperties.load(userFile.isFile() ? userFile : null);
+    }
+
+    private List<File> findPackages() throws IOException {
+        List<File> opfFiles = new ArrayList<File>();
+        FindOPFFilesDirectoryWalker walker = new FindOPFFilesDirectoryWalker();
+        for (File file : packages) {
+            if (file.isDirectory()) {
+                opfFiles.addAll(walker.getFiles(file));
+            } else if (file.isFile()) {
+                opfFiles.add(file);
+            } else {
+                logger.severe("Package not found: " + file.getPath());
+            }
+        }
+        return opfFiles;
+    }
+
+    /**
+     * Converts every package named on the command line.
+     * @return process exit status, 0 when all packages converted
+     */
+    private int run() {
+        Properties props;
+        List<File> opfFiles;
+        try {
+            props = loadSettings();
+            if (chapterThreads > 0) {
+                props.setProperty("chapterThreads", String.valueOf(chapterThreads));
+            }
+            if (incremental) {
+                props.setProperty("incrementalRebuild", "true");
+            }
+            if (cache) {
+                props.setProperty("outputCache", "true");
+            }
+            if (compressFO) {
+                props.setProperty("compressFO", "true");
+            }
+            if (profileFile != null) {
+                props.setProperty("profileReport", "true");
+            }
+            if (progressInterval >= 0) {
+                props.setProperty("progressInterval", String.valueOf(progressInterval));
+            }
+            opfFiles = findPackages();
+        } catch (IOException ex) {
+            logger.severe(ex.getMessage());
+            return 2;
+        }
+        if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+            logger.severe("Unable to create output directory " + outputDir.getPath());
+            return 2;
+        }
+        if (rebuildFontCache) {
+            FontListCache.rebuild();
+        }
+        BatchConverter batch = new BatchConverter(threads);
+        int interval = getProgressInterval(props);
+        for (File opfFile : opfFiles) {
+            ConversionJob job = new ConversionJob(opfFile, outputDir, getMode(), props);
+            if (interval > 0) {
+                job.setProgress(newProgress(opfFile, interval));
+            }
+            batch.add(job);
+        }
+        try {
+            batch.run();
+        } catch (InterruptedException ex) {
+            logger.severe("Batch interrupted");
+            return 1;
+        }
+        for (ConversionJob job : batch.getJobs()) {
+            if (job.getStatus() != ConversionJob.Status.SUCCEEDED) {
+                logger.warning(job.getStatus() + ": " + job.getOpfFile().getPath());
+            }
+        }
+        logger.info(batch.getSummary());
+        OutputCache outputCache = OutputCache.getOutputCache(props);
+        if (outputCache != null) {
+            logger.info(outputCache.getStatistics());
+        }
+        if (ImageStore.isEnabled(props) || DerivativeImageCache.isEnabled(props)
+                || !props.getProperty("imageDownsampleDPI", "0").trim().equals("0")) {
+            logger.info(ImageStore.getImageStore().getStatistics());
+        }
+        logger.info(XMLParserPool.getStatistics());
+        if (profileFile != null) {
+            writeProfile(batch);
+        }
+        return batch.getFailureCount() == 0 ? 0 : 1;
+    }
+
+    /**
+     * @return seconds between the progress messages of a package, 0 for none
+     */
+    private int getProgressInterval(Properties props) {
+        try {
+            return Math.max(0, Integer.parseInt(props.getProperty("progressInterval", "0").trim()));
+        } catch (NumberFormatException ex) {
+            logger.warning("Invalid progressInterval " + props.getProperty("progressInterval"));
+            return 0;
+        }
+    }
+
+    /**
+     * @return progress of a package logged every interval seconds
+     */
+    private ConversionProgress newProgress(final File opfFile, int interval) {
+        ConversionProgress progress = new ConversionProgress(interval * 1000L);
+        progress.addListener(new ConversionProgress.Listener() {
+
+            public void progressChanged(ConversionProgress progress) {
+                logger.info(opfFile.getPath() + ": " + progress.getSummary());
+            }
+        });
+        return progress;
+    }
+
+    /**
+     * Writes the profile of every package and their total to the -profile
+     * file, and logs the total.
+     */
+    private void writeProfile(BatchConverter batch) {
+        ConversionProfile total = new ConversionProfile();
+        int pages = 0;
+        for (ConversionJob job : batch.getJobs()) {
+            total.add(job.getProfile());
+            pages += job.getPageCount();
+        }
+        logger.info("Time by stage: " + total.getSummary());
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(profileFile), "UTF-8");
+            try {
+                out.write(ConversionJob.PROFILE_HEADER + "\n");
+                for (ConversionJob job : batch.getJobs()) {
+                    job.writeProfile(out);
+                }
+                total.write(out, "total," + batch.getFailureCount() + " failed," + pages);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            logger.severe("Unable to write " + profileFile.getPath() + ": " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,477 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.net.URI;
+import java.util.logging.Logger;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.apache.xmlgraphics.image.loader.ImageFlavor;
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+
+/**
+ * Java Flight Recorder events of the conversion stages, so that a recording
+ * of a stalled conversion shows which package, chapter and image it is
+ * working on. Each event names the package of the ConversionProfile attached
+ * to the thread.
+ * <p>
+ * The begin methods return null on a JVM without the jdk.jfr module, and
+ * the end methods ignore null, so nothing else needs to check. While no
+ * recording is running an event costs an allocation the JIT removes, its
+ * attributes are only worked out for events being recorded.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ConversionEvents {
+
+    private static final boolean available = isJFRAvailable();
+
+    private ConversionEvents() {
+    }
+
+    private static boolean isJFRAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException ex) {
+            Logger.getLogger(ConversionEvents.class.getName()).fine("Flight recorder events not available: " + ex);
+        } catch (LinkageError ex) {
+            Logger.getLogger(ConversionEvents.class.getName()).fine("Flight recorder events not available: " + ex);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the JVM has the flight recorder API
+     */
+    public static boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Records the start of a job and begins the event of the whole job.
+     * @param opfFile package file
+     * @param mode conversion performed
+     * @return the job event, to be passed to endJob
+     */
+    public static JobEvent beginJob(File opfFile, ConversionJob.Mode mode) {
+        if (!available) {
+            return null;
+        }
+        JobStartEvent start = new JobStartEvent();
+        if (start.shouldCommit()) {
+            start.opfFile = opfFile.getPath();
+            start.mode = mode.name();
+            start.commit();
+        }
+        JobEvent event = new JobEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event from beginJob, may be null
+     * @param opfFile package file
+     * @param mode conversion performed
+     * @param status final state of the job
+     * @param pages number of pages generated
+     * @param result file written, null if the job failed
+     */
+    public static void endJob(JobEvent event, File opfFile, ConversionJob.Mode mode, ConversionJob.Status status,
+            int pages, File result) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.packageId = getPackage();
+            event.opfFile = opfFile.getPath();
+            event.mode = mode.name();
+            event.status = status.name();
+            event.pages = pages;
+            event.result = result != null ? result.getPath() : null;
+            event.resultBytes = result != null ? result.length() : 0;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins the transformation of a DTBook or the reading of an XSL-FO file.
+     * @return the event, to be passed to endXSLT
+     */
+    public static XSLTEvent beginXSLT() {
+        if (!available) {
+            return null;
+        }
+        XSLTEvent event = new XSLTEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event from beginXSLT, may be null
+     * @param source DTBook or XSL-FO file read
+     * @param chapter index of the chapter transformed, -1 for the whole book
+     * @param output what the result is written as, fo, pdf, fo+pdf or if
+     */
+    public static void endXSLT(XSLTEvent event, File source, int chapter, String output) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.packageId = getPackage();
+            event.source = source.getPath();
+            event.sourceBytes = source.length();
+            event.chapter = chapter;
+            event.output = output;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins the layout of page sequences by FOP.
+     * @return the event, to be passed to endPageSequence
+     */
+    public static PageSequenceEvent beginPageSequence() {
+        if (!available) {
+            return null;
+        }
+        PageSequenceEvent event = new PageSequenceEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event from beginPageSequence, may be null
+     * @param id id of the fo:page-sequence, may be null
+     * @param sequence index of the page sequence in the document
+     * @param pages pages the page sequence was laid out on
+     * @param totalPages pages of the document so far
+     */
+    public static void endPageSequence(PageSequenceEvent event, String id, int sequence, int pages,
+            int totalPages) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.packageId = getPackage();
+            event.id = id;
+            event.sequence = sequence;
+            event.pages = pages;
+            event.totalPages = totalPages;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins the decoding of an image by FOP.
+     * @return the event, to be passed to endImageLoad
+     */
+    public static ImageLoadEvent beginImageLoad() {
+        if (!available) {
+            return null;
+        }
+        ImageLoadEvent event = new ImageLoadEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event from beginImageLoad, may be null
+     * @param info the image loaded
+     * @param flavor form the image was loaded in
+     */
+    public static void endImageLoad(ImageLoadEvent event, ImageInfo info, ImageFlavor flavor) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.packageId = getPackage();
+            event.uri = info.getOriginalURI();
+            event.mimeType = info.getMimeType();
+            event.flavor = flavor != null ? flavor.getName() : null;
+            if (info.getSize() != null) {
+                event.width = info.getSize().getWidthPx();
+                event.height = info.getSize().getHeightPx();
+            }
+            event.bytes = getLength(info.getOriginalURI());
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins resizing an image of a package.
+     * @return the event, to be passed to endImageResize
+     */
+    public static ImageResizeEvent beginImageResize() {
+        if (!available) {
+            return null;
+        }
+        ImageResizeEvent event = new ImageResizeEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event from beginImageResize, may be null
+     * @param file image resized
+     * @param result file written, the image itself if it already fit, null
+     * if unknown or failed
+     * @param attempts number of times the resizer was called
+     * @param succeeded false if the image failed on every attempt
+     */
+    public static void endImageResize(ImageResizeEvent event, File file, File result, int attempts,
+            boolean succeeded) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.packageId = getPackage();
+            event.file = file.getPath();
+            event.bytes = file.length();
+            event.result = result != null ? result.getPath() : null;
+            event.resultBytes = result != null ? result.length() : 0;
+            event.attempts = attempts;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    /**
+     * Begins resolving an external entity of a package file or DTBook.
+     * @return the event, to be passed to endEntityResolution
+     */
+    public static EntityResolutionEvent beginEntityResolution() {
+        if (!available) {
+            return null;
+        }
+        EntityResolutionEvent event = new EntityResolutionEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * @param event from beginEntityResolution, may be null
+     * @param publicId
+     * @param systemId
+     * @param bytes size of the entity served, 0 for an empty one
+     * @param cached true if it was served from memory
+     */
+    public static void endEntityResolution(EntityResolutionEvent event, String publicId, String systemId,
+            int bytes, boolean cached) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.packageId = getPackage();
+            event.publicId = publicId;
+            event.systemId = systemId;
+            event.bytes = bytes;
+            event.cached = cached;
+            event.commit();
+        }
+    }
+
+    private static String getPackage() {
+        ConversionProfile profile = ConversionProfile.getCurrent();
+        return profile != null ? profile.getIdentifier() : null;
+    }
+
+    /**
+     * @return size of the file a URI points at, 0 if it is not a file
+     */
+    private static long getLength(String uri) {
+        if (uri == null || !uri.startsWith("file:")) {
+            return 0;
+        }
+        try {
+            return new File(new URI(uri)).length();
+        } catch (Exception ex) {
+            // not a hierarchical file URI
+            return 0;
+        }
+    }
+
+    /**
+     * A job was started.
+     */
+    @Name("org.eightfoldconsulting.nimas2pdf.JobStart")
+    @Label("Conversion Job Start")
+    @Category({"NIMAS2PDF", "Job"})
+    @StackTrace(false)
+    public static class JobStartEvent extends Event {
+
+        @Label("Package File")
+        String opfFile;
+        @Label("Mode")
+        String mode;
+    }
+
+    /**
+     * A job ran, from start to end.
+     */
+    @Name("org.eightfoldconsulting.nimas2pdf.Job")
+    @Label("Conversion Job")
+    @Category({"NIMAS2PDF", "Job"})
+    @StackTrace(false)
+    public static class JobEvent extends Event {
+
+        @Label("Package")
+        @Description("dc:Identifier of the package")
+        String packageId;
+        @Label("Package File")
+        String opfFile;
+        @Label("Mode")
+        String mode;
+        @Label("Status")
+        String status;
+        @Label("Pages")
+        int pages;
+        @Label("Result")
+        String result;
+        @Label("Result Size")
+        @DataAmount
+        long resultBytes;
+    }
+
+    /**
+     * A DTBook was transformed, or an XSL-FO file read, including building
+     * FOP's FO tree and the page sequences laid out on the way.
+     */
+    @Name("org.eightfoldconsulting.nimas2pdf.XSLT")
+    @Label("XSLT Transformation")
+    @Category({"NIMAS2PDF", "Transformation"})
+    @StackTrace(false)
+    public static class XSLTEvent extends Event {
+
+        @Label("Package")
+        String packageId;
+        @Label("Source")
+        String source;
+        @Label("Source Size")
+        @DataAmount
+        long sourceBytes;
+        @Label("Chapter")
+        @Description("Index of the chapter transformed, -1 for the whole book")
+        int chapter;
+        @Label("Output")
+        String output;
+    }
+
+    /**
+     * FOP finished a page sequence.
+     */
+    @Name("org.eightfoldconsulting.nimas2pdf.PageSequence")
+    @Label("Page Sequence")
+    @Description("Layout of a page sequence, for an accessible PDF the first event has the time of all")
+    @Category({"NIMAS2PDF", "Layout"})
+    @StackTrace(false)
+    public static class PageSequenceEvent extends Event {
+
+        @Label("Package")
+        String packageId;
+        @Label("Id")
+        String id;
+        @Label("Sequence")
+        int sequence;
+        @Label("Pages")
+        int pages;
+        @Label("Total Pages")
+        int totalPages;
+    }
+
+    /**
+     * FOP decoded an image.
+     */
+    @Name("org.eightfoldconsulting.nimas2pdf.ImageLoad")
+    @Label("Image Load")
+    @Category({"NIMAS2PDF", "Images"})
+    public static class ImageLoadEvent extends Event {
+
+        @Label("Package")
+        String packageId;
+        @Label("URI")
+        String uri;
+        @Label("MIME Type")
+        String mimeType;
+        @Label("Flavor")
+        String flavor;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * An image of a package was resized, or found to fit already.
+     */
+    @Name("org.eightfoldconsulting.nimas2pdf.ImageResize")
+    @Label("Image Resize")
+    @Category({"NIMAS2PDF", "Images"})
+    @StackTrace(false)
+    public static class ImageResizeEvent extends Event {
+
+        @Label("Package")
+        String packageId;
+        @Label("File")
+        String file;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Result")
+        String result;
+        @Label("Result Size")
+        @DataAmount
+        long resultBytes;
+        @Label("Attempts")
+        int attempts;
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    /**
+     * An external entity was resolved.
+     */
+    @Name("org.eightfoldconsulting.nimas2pdf.EntityResolution")
+    @Label("Entity Resolution")
+    @Category({"NIMAS2PDF", "Parsing"})
+    public static class EntityResolutionEvent extends Event {
+
+        @Label("Package")
+        String packageId;
+        @Label("Public Id")
+        String publicId;
+        @Label("System Id")
+        String systemId;
+        @Label("Size")
+        @DataAmount
+        long bytes;
+        @Label("Cached")
+        @Description("Served from memory")
+        boolean cached;
+    }
+}
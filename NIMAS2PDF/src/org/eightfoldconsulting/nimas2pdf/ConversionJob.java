@@ -0,0 +1,289 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.logging.Logger;
+import javax.xml.transform.TransformerException;
+import org.apache.fop.apps.FOPException;
+import org.xml.sax.SAXException;
+
+/**
+ * Converts a single NIMAS package. This is the pipeline behind the Transform
+ * button, free of any Swing dependencies so it can also run headless.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ConversionJob {
+
+    /**
+     * Source and render format combinations offered in the Options menu.
+     */
+    public enum Mode {
+        /** DTBook to PDF */
+        NIMAS2PDF,
+        /** DTBook to XSL-FO */
+        NIMAS2FO,
+        /** XSL-FO to PDF */
+        FO2PDF,
+        /** DTBook to XSL-FO and PDF in one pass, console only */
+        NIMAS2FOPDF
+    }
+
+    /**
+     * Progress of a job through a batch.
+     */
+    public enum Status {
+        /** waiting for a worker */
+        PENDING,
+        /** being converted */
+        RUNNING,
+        /** converted successfully */
+        SUCCEEDED,
+        /** conversion failed, see getError() */
+        FAILED
+    }
+    /**
+     * Columns of the profile reports, see writeProfile.
+     */
+    public static final String PROFILE_HEADER =
+            "package,status,pages,stage,count,wall_ms,cpu_ms,allocated_bytes";
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+    private File opfFile;
+    private File outputDir;
+    private Mode mode;
+    private Properties props;
+    private int pageCount;
+    private volatile Status status = Status.PENDING;
+    private volatile Throwable error;
+    private long elapsedMillis;
+    private ConversionProfile profile = new ConversionProfile();
+    private File profileFile;
+    private ConversionProgress progress;
+
+    /**
+     *
+     * @param opfFile NIMAS package file
+     * @param outputDir directory for the result, null for the package directory
+     * @param mode conversion to perform
+     * @param props conversion settings, see default.properties
+     */
+    public ConversionJob(File opfFile, File outputDir, Mode mode, Properties props) {
+        this.opfFile = opfFile;
+        this.outputDir = outputDir;
+        this.mode = mode;
+        this.props = props;
+    }
+
+    /**
+     * Runs the conversion.
+     * @return the file written
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException
+     * @throws FOPException
+     */
+    public File run() throws IOException, SAXException, TransformerException, FOPException {
+        status = Status.RUNNING;
+        long start = System.currentTimeMillis();
+        profile.attach();
+        ConversionEvents.JobEvent event = ConversionEvents.beginJob(opfFile, mode);
+        File result = null;
+        try {
+            result = convert();
+            status = Status.SUCCEEDED;
+            if (progress != null) {
+                progress.finish();
+            }
+            return result;
+        } finally {
+            elapsedMillis = System.currentTimeMillis() - start;
+            if (status != Status.SUCCEEDED) {
+                status = Status.FAILED;
+            }
+            ConversionEvents.endJob(event, opfFile, mode, status, pageCount, result);
+            profile.detach();
+            if (profileFile != null) {
+                writeProfile();
+            }
+        }
+    }
+
+    private File convert() throws IOException, SAXException, TransformerException, FOPException {
+        File sourceDir = opfFile.getAbsoluteFile().getParentFile();
+        File resultDir = outputDir != null ? outputDir : sourceDir;
+        File xsltfile = ApplicationProperties.getStylesheetFile(props);
+        //parse OPF
+        ConversionProfile.begin(ConversionProfile.Stage.OPF);
+        OPFReader opfReader;
+        try {
+            opfReader = new OPFReader(opfFile);
+        } finally {
+            ConversionProfile.end(ConversionProfile.Stage.OPF);
+        }
+        String nimasID = opfReader.getIdentifier();
+        if (nimasID == null || nimasID.length() == 0) {
+            throw new IOException("No identifier found in " + opfFile.getName());
+        }
+        profile.setIdentifier(nimasID);
+        if (Boolean.parseBoolean(props.getProperty("profileReport"))) {
+            profileFile = new File(resultDir, nimasID + ".profile.csv");
+        }
+        //FO2PDF reads the FO from the package directory
+        File sourceFile = mode == Mode.FO2PDF ? Utils.getFOFile(sourceDir, nimasID)
+                : new File(sourceDir, opfReader.getDaisyXML());
+        String foExtension = Boolean.parseBoolean(props.getProperty("compressFO")) ? "fo.gz" : "fo";
+        String extension = mode == Mode.NIMAS2FO ? foExtension : "pdf";
+        File result = new File(resultDir, nimasID + "." + extension);
+        File foFile = mode == Mode.NIMAS2FOPDF ? new File(resultDir, nimasID + "." + foExtension) : null;
+        //unchanged packages are copied from the output cache
+        OutputCache cache = OutputCache.getOutputCache(props);
+        String key = null;
+        if (cache != null) {
+            key = cache.getKey(opfFile, opfReader, sourceFile, mode, xsltfile, props);
+            String[] extensions = foFile == null ? new String[]{extension} : new String[]{extension, foExtension};
+            File[] results = foFile == null ? new File[]{result} : new File[]{result, foFile};
+            if (cache.get(key, extensions, results)) {
+                logger.info("Copied " + result.getPath() + " from the output cache");
+                return result;
+            }
+        }
+        XMLConverter xc = new XMLConverter(sourceFile, xsltfile, props);
+        xc.setProgress(progress);
+        switch (mode) {
+            case NIMAS2FO:
+                //DTBook to XSL-FO
+                xc.convertNIMAS2FO(result);
+                break;
+            case FO2PDF:
+                //XSL-FO to PDF
+                xc.convertFO2PDF(opfReader, result);
+                break;
+            case NIMAS2FOPDF:
+                //DTBook to XSL-FO and PDF
+                xc.convertXML2FOPDF(opfReader, foFile, result);
+                logger.info("Wrote " + foFile.getPath());
+                break;
+            default:
+                //DTBook to PDF
+                xc.convertXML2PDF(opfReader, result);
+                break;
+        }
+        pageCount = xc.getPageCount();
+        logger.info("Wrote " + result.getPath());
+        if (cache != null) {
+            cache.put(key, extension, result);
+            if (foFile != null) {
+                cache.put(key, foExtension, foFile);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the package file
+     */
+    public File getOpfFile() {
+        return opfFile;
+    }
+
+    /**
+     * @return the number of pages generated, 0 for XSL-FO output and results
+     * copied from the output cache
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return the current state of the job
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the reason the job failed, null unless the status is FAILED
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    void setError(Throwable error) {
+        this.error = error;
+        this.status = Status.FAILED;
+    }
+
+    /**
+     * @return wall clock time spent in run() in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @param progress fed as the conversion reads its source and lays out
+     * pages, null for none
+     */
+    public void setProgress(ConversionProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * @return progress of the conversion, null if none was set
+     */
+    public ConversionProgress getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return time and allocations of the conversion by stage
+     */
+    public ConversionProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Writes a CSV line per stage of the conversion, the columns as in
+     * PROFILE_HEADER.
+     * @param out
+     * @throws IOException
+     */
+    public void writeProfile(Writer out) throws IOException {
+        profile.write(out, ConversionProfile.toCSV(opfFile.getPath()) + "," + status.name().toLowerCase() + ","
+                + pageCount);
+    }
+
+    /**
+     * Writes the profile report next to the result, the profileReport
+     * setting turns it on.
+     */
+    private void writeProfile() {
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(profileFile), "UTF-8");
+            try {
+                out.write(PROFILE_HEADER + "\n");
+                writeProfile(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            logger.warning("Unable to write " + profileFile.getPath() + ": " + ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,310 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Wall time, CPU time and allocated bytes of one conversion, split by stage.
+ * <p>
+ * A profile is attached to each thread working on the conversion. The code
+ * of a stage is bracketed by begin and end, which do nothing on threads
+ * without a profile. Stages nest and the time is charged to the innermost
+ * one, so image loading during layout counts as image loading only. Time
+ * outside any stage is charged to OTHER, including the time a thread waits
+ * for the others, and the times of all threads are added up.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ConversionProfile {
+
+    /**
+     * Parts of a conversion measured separately.
+     */
+    public enum Stage {
+        /** reading the package file */
+        OPF,
+        /** checking and reading the DTDs, up to the root element of the DTBook */
+        DTD,
+        /** parsing and transforming the DTBook, or parsing the XSL-FO, and building FOP's FO tree */
+        XSLT,
+        /** laying out page sequences */
+        LAYOUT,
+        /** loading images and looking up their derivatives */
+        IMAGES,
+        /** rendering the laid out pages to PDF, finishing the PDF and merging chapters */
+        PDF,
+        /** resizing the package images before the conversion */
+        RESIZE,
+        /** everything else, including waiting for other threads */
+        OTHER
+    }
+
+    private static final ThreadLocal<Frame> frames = new ThreadLocal<Frame>();
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+    private static com.sun.management.ThreadMXBean allocationBean;
+
+    static {
+        try {
+            if (threadBean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported()) {
+                allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+            }
+        } catch (LinkageError ex) {
+            // not a HotSpot VM, allocations are reported as 0
+            Logger.getLogger(ConversionProfile.class.getName()).fine("Allocated bytes not available: " + ex);
+        }
+    }
+    private final long[] counts = new long[Stage.values().length];
+    private final long[] wallNanos = new long[Stage.values().length];
+    private final long[] cpuNanos = new long[Stage.values().length];
+    private final long[] allocatedBytes = new long[Stage.values().length];
+    private volatile String identifier;
+
+    /**
+     * @return the profile attached to the current thread, null if none
+     */
+    public static ConversionProfile getCurrent() {
+        Frame frame = frames.get();
+        return frame != null ? frame.profile : null;
+    }
+
+    /**
+     * @return identifier of the package converted, null until it is known
+     */
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * @param identifier identifier of the package converted, named in the
+     * flight recorder events, see ConversionEvents
+     */
+    public void setIdentifier(String identifier) {
+        this.identifier = identifier;
+    }
+
+    /**
+     * Charges the work of the current thread to this profile until detach.
+     */
+    public void attach() {
+        frames.set(new Frame(this));
+    }
+
+    /**
+     * Stops charging the work of the current thread to this profile.
+     */
+    public void detach() {
+        Frame frame = frames.get();
+        if (frame != null && frame.profile == this) {
+            frame.charge();
+            frames.remove();
+        }
+    }
+
+    /**
+     * Enters a stage on the current thread, to be left with end in a finally
+     * block.
+     * @param stage
+     */
+    public static void begin(Stage stage) {
+        Frame frame = frames.get();
+        if (frame != null) {
+            frame.push(stage);
+        }
+    }
+
+    /**
+     * Leaves a stage on the current thread, if it is the innermost one.
+     * @param stage
+     */
+    public static void end(Stage stage) {
+        Frame frame = frames.get();
+        if (frame != null) {
+            frame.pop(stage);
+        }
+    }
+
+    private synchronized void add(Stage stage, long count, long wall, long cpu, long allocated) {
+        int i = stage.ordinal();
+        counts[i] += count;
+        wallNanos[i] += wall;
+        cpuNanos[i] += cpu;
+        allocatedBytes[i] += allocated;
+    }
+
+    /**
+     * Adds the figures of another profile to this one, for batch totals.
+     * @param other
+     */
+    public void add(ConversionProfile other) {
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            long count;
+            long wall;
+            long cpu;
+            long allocated;
+            synchronized (other) {
+                count = other.counts[i];
+                wall = other.wallNanos[i];
+                cpu = other.cpuNanos[i];
+                allocated = other.allocatedBytes[i];
+            }
+            add(stage, count, wall, cpu, allocated);
+        }
+    }
+
+    /**
+     * @param stage
+     * @return number of times the stage was entered
+     */
+    public synchronized long getCount(Stage stage) {
+        return counts[stage.ordinal()];
+    }
+
+    /**
+     * @param stage
+     * @return wall clock time spent in the stage on all threads
+     */
+    public synchronized long getWallNanos(Stage stage) {
+        return wallNanos[stage.ordinal()];
+    }
+
+    /**
+     * @param stage
+     * @return CPU time spent in the stage on all threads, 0 if the JVM does
+     * not measure it
+     */
+    public synchronized long getCpuNanos(Stage stage) {
+        return cpuNanos[stage.ordinal()];
+    }
+
+    /**
+     * @param stage
+     * @return bytes allocated in the stage on all threads, 0 if the JVM does
+     * not measure it
+     */
+    public synchronized long getAllocatedBytes(Stage stage) {
+        return allocatedBytes[stage.ordinal()];
+    }
+
+    /**
+     * Writes one CSV line per stage, count, wall and CPU milliseconds and
+     * allocated bytes, after the given leading fields.
+     * @param out
+     * @param fields leading fields of every line, already CSV encoded
+     * @throws IOException
+     */
+    public synchronized void write(Writer out, String fields) throws IOException {
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            out.write(String.format(Locale.US, "%s,%s,%d,%.3f,%.3f,%d\n", fields, stage.name().toLowerCase(Locale.US),
+                    counts[i], wallNanos[i] / 1e6, cpuNanos[i] / 1e6, allocatedBytes[i]));
+        }
+    }
+
+    /**
+     * @param value
+     * @return the value as a CSV field, quoted if needed
+     */
+    public static String toCSV(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * @return the stages that took any time with their wall time, CPU time
+     * and allocations
+     */
+    public synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            if (wallNanos[i] == 0) {
+                continue;
+            }
+            sb.append(sb.length() == 0 ? "" : ", ").append(String.format("%s %.1fs (CPU %.1fs, %d MB)",
+                    stage.name().toLowerCase(Locale.US), wallNanos[i] / 1e9, cpuNanos[i] / 1e9,
+                    allocatedBytes[i] / (1024 * 1024)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The stages entered on one thread and the clocks at the last change.
+     */
+    private static class Frame {
+
+        private ConversionProfile profile;
+        private Stage[] stack = new Stage[8];
+        private int depth;
+        private long wall;
+        private long cpu;
+        private long allocated;
+
+        Frame(ConversionProfile profile) {
+            this.profile = profile;
+            stack[depth++] = Stage.OTHER;
+            wall = System.nanoTime();
+            cpu = getCpuTime();
+            allocated = getAllocatedBytes();
+        }
+
+        void push(Stage stage) {
+            charge();
+            if (depth == stack.length) {
+                Stage[] grown = new Stage[depth * 2];
+                System.arraycopy(stack, 0, grown, 0, depth);
+                stack = grown;
+            }
+            stack[depth++] = stage;
+            profile.add(stage, 1, 0, 0, 0);
+        }
+
+        void pop(Stage stage) {
+            if (depth > 1 && stack[depth - 1] == stage) {
+                charge();
+                depth--;
+            }
+        }
+
+        /**
+         * Charges the time since the last change to the innermost stage.
+         */
+        void charge() {
+            long now = System.nanoTime();
+            long cpuNow = getCpuTime();
+            long allocatedNow = getAllocatedBytes();
+            profile.add(stack[depth - 1], 0, now - wall, cpuNow - cpu, allocatedNow - allocated);
+            wall = now;
+            cpu = cpuNow;
+            allocated = allocatedNow;
+        }
+
+        private static long getCpuTime() {
+            return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+        }
+
+        private static long getAllocatedBytes() {
+            return allocationBean != null ? allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one conversion, fed with the bytes and the text of the source
+ * read, see ProgressInputStream and ProgressFilter, and the pages and text
+ * FOP finishes, see ProgressDocumentHandler.
+ * <p>
+ * Reading the source counts for a quarter of the work, laying out and
+ * rendering pages for the rest. Xalan reads the whole DTBook before it
+ * transforms it and FOP lays out a page sequence only after reading all of
+ * it, so bytes and page sequences say little about the pages. The layout is
+ * measured instead by the characters drawn on the pages against the
+ * characters of the source, not counting white space; while an XSL-FO
+ * source is still being read its text is extrapolated from the bytes. The
+ * time left is the text not yet drawn at the rate it has been drawn.
+ * <p>
+ * Listeners are called on the converting threads, at most once per
+ * interval and once more when the conversion finishes, so they should be
+ * quick and hand their work to another thread.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ConversionProgress {
+
+    /**
+     * Notified of the progress of a conversion.
+     */
+    public interface Listener {
+
+        /**
+         * @param progress the conversion that progressed, see its getters
+         */
+        void progressChanged(ConversionProgress progress);
+    }
+
+    /**
+     * Part of the text drawn before the pages and time left are estimated.
+     */
+    private static final double MIN_DRAWN = 0.01;
+    private final long interval;
+    private final long start = System.nanoTime();
+    private final AtomicLong lastUpdate = new AtomicLong(start);
+    private final AtomicLong bytesToRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong textRead = new AtomicLong();
+    private final AtomicLong textDrawn = new AtomicLong();
+    private final AtomicInteger pages = new AtomicInteger();
+    private volatile long firstPage;
+    private volatile boolean paginated = true;
+    private volatile boolean finished;
+    private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     *
+     * @param intervalMillis minimum time between notifications of the
+     * listeners
+     */
+    public ConversionProgress(long intervalMillis) {
+        this.interval = intervalMillis * 1000000L;
+    }
+
+    /**
+     * @param listener notified as the conversion progresses
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Adds a source file to be read, before reading it.
+     * @param bytes length of the file
+     */
+    public void addBytesToRead(long bytes) {
+        bytesToRead.addAndGet(bytes);
+    }
+
+    /**
+     * @param paginated false if no pages are laid out, for XSL-FO output
+     */
+    public void setPaginated(boolean paginated) {
+        this.paginated = paginated;
+    }
+
+    /**
+     * @param bytes number of source bytes read, negative when they are read
+     * again
+     */
+    public void bytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+        update();
+    }
+
+    /**
+     * @param chars number of characters of source text read, not counting
+     * white space
+     */
+    public void textRead(int chars) {
+        textRead.addAndGet(chars);
+    }
+
+    /**
+     * @param chars number of characters drawn on a page, not counting white
+     * space
+     */
+    public void textDrawn(int chars) {
+        textDrawn.addAndGet(chars);
+    }
+
+    /**
+     * Counts a page finished by FOP.
+     */
+    public void pageDone() {
+        if (pages.getAndIncrement() == 0) {
+            firstPage = System.nanoTime();
+        }
+        update();
+    }
+
+    /**
+     * @param text
+     * @param start
+     * @param length
+     * @return number of characters that are not white space
+     */
+    public static int countText(char[] text, int start, int length) {
+        int n = 0;
+        for (int i = start; i < start + length; i++) {
+            if (!Character.isWhitespace(text[i])) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @param text
+     * @return number of characters that are not white space
+     */
+    public static int countText(String text) {
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Marks the conversion as complete and notifies the listeners.
+     */
+    public void finish() {
+        finished = true;
+        lastUpdate.set(System.nanoTime());
+        fireProgressChanged();
+    }
+
+    private void update() {
+        long now = System.nanoTime();
+        long last = lastUpdate.get();
+        // the thread that moves lastUpdate notifies
+        if (now - last >= interval && lastUpdate.compareAndSet(last, now)) {
+            fireProgressChanged();
+        }
+    }
+
+    private void fireProgressChanged() {
+        for (Listener listener : listeners) {
+            listener.progressChanged(this);
+        }
+    }
+
+    /**
+     * @return true once the conversion is complete
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return number of source bytes read
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return number of pages finished
+     */
+    public int getPages() {
+        return pages.get();
+    }
+
+    /**
+     * @return characters of the source, estimated from the bytes while it is
+     * being read
+     */
+    private long getText() {
+        long text = textRead.get();
+        long read = bytesRead.get();
+        long total = bytesToRead.get();
+        return read > 0 && read < total ? Math.round((double) text * total / read) : text;
+    }
+
+    /**
+     * @return part of the pages laid out, from 0 to 1
+     */
+    private double getFractionDrawn() {
+        long text = getText();
+        return text > 0 ? Math.min(1, (double) textDrawn.get() / text) : 0;
+    }
+
+    /**
+     * @return estimated number of pages of the book, -1 until enough pages
+     * are finished to go by
+     */
+    public int getEstimatedPages() {
+        int n = pages.get();
+        double drawn = getFractionDrawn();
+        return n > 0 && drawn >= MIN_DRAWN ? (int) Math.max(n, Math.round(n / drawn)) : -1;
+    }
+
+    /**
+     * @return part of the conversion done, from 0 to 1, below 0.99 until it
+     * is finished as the stylesheet adds and drops some text
+     */
+    public double getFractionDone() {
+        if (finished) {
+            return 1;
+        }
+        long total = bytesToRead.get();
+        double read = total > 0 ? Math.min(1, Math.max(0, (double) bytesRead.get() / total)) : 0;
+        double done = paginated ? read / 4 + getFractionDrawn() * 3 / 4 : read;
+        return Math.min(0.99, done);
+    }
+
+    /**
+     * @return pages finished per second since the first one, 0 before the
+     * second page
+     */
+    public double getPagesPerSecond() {
+        int n = pages.get();
+        long nanos = System.nanoTime() - firstPage;
+        return n > 1 && nanos > 0 ? (n - 1) * 1e9 / nanos : 0;
+    }
+
+    /**
+     * @return time since the conversion started in milliseconds
+     */
+    public long getElapsedMillis() {
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    /**
+     * @return estimated time left in milliseconds, -1 until enough pages are
+     * finished to go by
+     */
+    public long getMillisLeft() {
+        if (finished) {
+            return 0;
+        }
+        long drawn = textDrawn.get();
+        long nanos = System.nanoTime() - firstPage;
+        if (!paginated || pages.get() < 2 || getFractionDrawn() < MIN_DRAWN || nanos <= 0) {
+            return -1;
+        }
+        long left = Math.max(0, getText() - drawn);
+        return Math.round(left * (nanos / 1e6) / drawn);
+    }
+
+    /**
+     * @return percent done, pages per second and time left, as far as known
+     */
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%d%% done", (int) (getFractionDone() * 100)));
+        if (paginated) {
+            int estimate = getEstimatedPages();
+            sb.append(estimate > 0 ? String.format(", %d of about %d pages", pages.get(), estimate)
+                    : String.format(", %d pages", pages.get()));
+            double rate = getPagesPerSecond();
+            if (rate > 0) {
+                sb.append(String.format(" at %.1f pages/s", rate));
+            }
+        }
+        long left = getMillisLeft();
+        if (left > 0) {
+            long seconds = left / 1000;
+            sb.append(seconds < 60 ? ", less than a minute left"
+                    : String.format(", about %d min left", (seconds + 59) / 60));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,206 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import org.apache.xerces.util.SynchronizedSymbolTable;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Compiles the DTBook DTD once per JVM instead of once per parse.
+ * <p>
+ * Parsers given to setGrammarPool share a Xerces grammar pool, which keeps
+ * the DTD with its attribute defaults, such as the #FIXED DTBook namespace,
+ * after the first parse. Xerces finds the DTD in the pool by its public and
+ * system id alone, so a document with an internal subset, see
+ * hasInternalSubset, must be parsed without the pool. isExternalDTDNeeded is the faster path: the DTBook
+ * DTD declares no general entities, so a document whose root element states
+ * the namespace itself reads the same without it.
+ *
+ * @author Gregory Buchenberger
+ */
+public class DTDGrammarPool {
+
+    private static final String GRAMMAR_POOL = "http://apache.org/xml/properties/internal/grammar-pool";
+    private static final String SYMBOL_TABLE = "http://apache.org/xml/properties/internal/symbol-table";
+    private static final String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+    private static final String DTBOOK_NAMESPACE = "http://www.daisy.org/z3986/2005/dtbook/";
+    // the prolog and root start tag of a DTBook are expected well within this
+    private static final int PROLOG_BYTES = 16 * 1024;
+    private static final Pattern GENERAL_ENTITY = Pattern.compile("<!ENTITY\\s+[^%\\s]");
+    private static final Pattern COMMENT = Pattern.compile("<!--.*?-->", Pattern.DOTALL);
+    private static Logger logger = Logger.getLogger(DTDGrammarPool.class.getName());
+    private static final XMLGrammarPool pool = new XMLGrammarPoolImpl();
+    private static final SynchronizedSymbolTable symbols = new SynchronizedSymbolTable();
+    private static Boolean dtbookEntities;
+
+    private DTDGrammarPool() {
+    }
+
+    /**
+     * Makes the parser use the shared grammar pool. Parsers other than
+     * Xerces are left as they are.
+     * @param reader a parser reading DTBook
+     */
+    public static void setGrammarPool(XMLReader reader) {
+        setGrammarPool(reader, true);
+    }
+
+    /**
+     * Makes the parser use the shared grammar pool or none at all.
+     * @param reader a parser reading DTBook
+     * @param shared false for documents with an internal subset, whose DTD
+     * differs from the one in the pool
+     */
+    public static void setGrammarPool(XMLReader reader, boolean shared) {
+        try {
+            reader.setProperty(SYMBOL_TABLE, symbols);
+            reader.setProperty(GRAMMAR_POOL, shared ? pool : null);
+        } catch (SAXException ex) {
+            logger.fine("No grammar pool: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Looks at the prolog only.
+     * @param xmlFile DTBook document
+     * @return true if the DOCTYPE of the document has an internal subset, or
+     * if the prolog is too long to tell
+     * @throws IOException if the document cannot be read
+     */
+    public static boolean hasInternalSubset(File xmlFile) throws IOException {
+        String prolog = readProlog(xmlFile);
+        int i = 0;
+        while (i < prolog.length()) {
+            i = prolog.indexOf('<', i);
+            if (i < 0) {
+                return true;
+            }
+            if (prolog.startsWith("<?", i)) {
+                i = prolog.indexOf("?>", i);
+            } else if (prolog.startsWith("<!--", i)) {
+                i = prolog.indexOf("-->", i);
+            } else if (prolog.startsWith("<!DOCTYPE", i)) {
+                int end = prolog.indexOf('>', i);
+                return end < 0 || prolog.substring(i, end).indexOf('[') >= 0;
+            } else {
+                // the root element, no DOCTYPE
+                return false;
+            }
+            if (i < 0) {
+                return true;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the parser loading the external DTD or has it load the DTD
+     * again, see isExternalDTDNeeded.
+     * @param reader a parser reading DTBook
+     * @param load false to parse without the DTD
+     */
+    public static void setLoadExternalDTD(XMLReader reader, boolean load) {
+        try {
+            reader.setFeature(LOAD_EXTERNAL_DTD, load);
+        } catch (SAXException ex) {
+            logger.fine("External DTD loaded: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Looks at the prolog and the root start tag only.
+     * @param xmlFile DTBook document
+     * @return false if the document refers to the DTBook DTD, has no internal
+     * subset and its root element declares the DTBook namespace, true if
+     * parsing it without the DTD might change the result
+     * @throws IOException if the document cannot be read
+     */
+    public static boolean isExternalDTDNeeded(File xmlFile) throws IOException {
+        String prolog = readProlog(xmlFile);
+        int i = 0;
+        boolean dtbookDoctype = false;
+        while (i < prolog.length()) {
+            i = prolog.indexOf('<', i);
+            if (i < 0) {
+                return true;
+            }
+            if (prolog.startsWith("<?", i)) {
+                i = prolog.indexOf("?>", i);
+            } else if (prolog.startsWith("<!--", i)) {
+                i = prolog.indexOf("-->", i);
+            } else if (prolog.startsWith("<!DOCTYPE", i)) {
+                int end = prolog.indexOf('>', i);
+                if (end < 0 || prolog.substring(i, end).indexOf('[') >= 0) {
+                    // internal subsets may declare anything
+                    return true;
+                }
+                dtbookDoctype = prolog.substring(i, end).indexOf(XMLEntityResolver.DTBOOK_DTD) >= 0;
+                i = end;
+            } else {
+                int end = prolog.indexOf('>', i);
+                if (end < 0 || !dtbookDoctype || declaresGeneralEntities()) {
+                    return true;
+                }
+                String root = prolog.substring(i, end);
+                return root.indexOf("xmlns=\"" + DTBOOK_NAMESPACE + "\"") < 0
+                        && root.indexOf("xmlns='" + DTBOOK_NAMESPACE + "'") < 0;
+            }
+            if (i < 0) {
+                return true;
+            }
+            i++;
+        }
+        return true;
+    }
+
+    private static String readProlog(File xmlFile) throws IOException {
+        byte[] bytes = new byte[PROLOG_BYTES];
+        int length = 0;
+        InputStream in = new FileInputStream(xmlFile);
+        try {
+            int n;
+            while (length < bytes.length && (n = in.read(bytes, length, bytes.length - length)) > 0) {
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+        // markup is ASCII in every encoding a DTBook is written in
+        return new String(bytes, 0, length, "ISO-8859-1");
+    }
+
+    /**
+     * @return true if the DTBook DTD declares general entities, checked once
+     */
+    private static synchronized boolean declaresGeneralEntities() throws IOException {
+        if (dtbookEntities == null) {
+            byte[] dtd = XMLEntityResolver.getEntity(XMLEntityResolver.DTBOOK_DTD);
+            if (dtd == null) {
+                return true;
+            }
+            String text = COMMENT.matcher(new String(dtd, "ISO-8859-1")).replaceAll("");
+            dtbookEntities = Boolean.valueOf(GENERAL_ENTITY.matcher(text).find());
+        }
+        return dtbookEntities.booleanValue();
+    }
+}
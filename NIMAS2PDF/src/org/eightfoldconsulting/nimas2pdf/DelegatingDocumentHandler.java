@@ -0,0 +1,173 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Dimension;
+import javax.xml.transform.Result;
+import org.apache.fop.apps.FOPException;
+import org.apache.fop.fonts.FontInfo;
+import org.apache.fop.render.intermediate.IFContext;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFDocumentHandlerConfigurator;
+import org.apache.fop.render.intermediate.IFDocumentNavigationHandler;
+import org.apache.fop.render.intermediate.IFException;
+import org.apache.fop.render.intermediate.IFPainter;
+import org.apache.fop.render.intermediate.IFUtil;
+
+/**
+ * Passes FOP's rendering calls on to another document handler, the base of
+ * handlers watching the pages FOP renders.
+ *
+ * @author Gregory Buchenberger
+ */
+public class DelegatingDocumentHandler implements IFDocumentHandler {
+
+    /**
+     * The handler the calls are passed on to.
+     */
+    protected IFDocumentHandler handler;
+
+    /**
+     *
+     * @param handler the handler writing the document
+     */
+    public DelegatingDocumentHandler(IFDocumentHandler handler) {
+        this.handler = handler;
+    }
+
+    public void setContext(IFContext context) {
+        handler.setContext(context);
+    }
+
+    public IFContext getContext() {
+        return handler.getContext();
+    }
+
+    public void setResult(Result result) throws IFException {
+        handler.setResult(result);
+    }
+
+    public void setFontInfo(FontInfo fontInfo) {
+        handler.setFontInfo(fontInfo);
+    }
+
+    public FontInfo getFontInfo() {
+        return handler.getFontInfo();
+    }
+
+    public void setDefaultFontInfo(FontInfo fontInfo) {
+        handler.setDefaultFontInfo(fontInfo);
+    }
+
+    public IFDocumentHandlerConfigurator getConfigurator() {
+        final IFDocumentHandlerConfigurator configurator = handler.getConfigurator();
+        if (configurator == null) {
+            return null;
+        }
+        // the configurator looks up the fonts by the MIME type of the handler
+        // it is given, which must be the wrapped one: IFUtil passes on the
+        // handler an IFSerializer mimics, otherwise only the base 14 fonts
+        // would be found
+        return new IFDocumentHandlerConfigurator() {
+
+            public void configure(IFDocumentHandler documentHandler) throws FOPException {
+                configurator.configure(handler);
+            }
+
+            public void setupFontInfo(IFDocumentHandler documentHandler, FontInfo fontInfo)
+                    throws FOPException {
+                IFUtil.setupFonts(handler, fontInfo);
+            }
+        };
+    }
+
+    public IFDocumentNavigationHandler getDocumentNavigationHandler() {
+        return handler.getDocumentNavigationHandler();
+    }
+
+    public boolean supportsPagesOutOfOrder() {
+        return handler.supportsPagesOutOfOrder();
+    }
+
+    public String getMimeType() {
+        return handler.getMimeType();
+    }
+
+    public void startDocument() throws IFException {
+        handler.startDocument();
+    }
+
+    public void endDocument() throws IFException {
+        handler.endDocument();
+    }
+
+    public void startDocumentHeader() throws IFException {
+        handler.startDocumentHeader();
+    }
+
+    public void endDocumentHeader() throws IFException {
+        handler.endDocumentHeader();
+    }
+
+    public void startDocumentTrailer() throws IFException {
+        handler.startDocumentTrailer();
+    }
+
+    public void endDocumentTrailer() throws IFException {
+        handler.endDocumentTrailer();
+    }
+
+    public void startPageSequence(String id) throws IFException {
+        handler.startPageSequence(id);
+    }
+
+    public void endPageSequence() throws IFException {
+        handler.endPageSequence();
+    }
+
+    public void startPage(int index, String name, String pageMasterName, Dimension size) throws IFException {
+        handler.startPage(index, name, pageMasterName, size);
+    }
+
+    public void endPage() throws IFException {
+        handler.endPage();
+    }
+
+    public void startPageHeader() throws IFException {
+        handler.startPageHeader();
+    }
+
+    public void endPageHeader() throws IFException {
+        handler.endPageHeader();
+    }
+
+    public IFPainter startPageContent() throws IFException {
+        return handler.startPageContent();
+    }
+
+    public void endPageContent() throws IFException {
+        handler.endPageContent();
+    }
+
+    public void startPageTrailer() throws IFException {
+        handler.startPageTrailer();
+    }
+
+    public void endPageTrailer() throws IFException {
+        handler.endPageTrailer();
+    }
+
+    public void handleExtensionObject(Object extension) throws IFException {
+        handler.handleExtensionObject(extension);
+    }
+}
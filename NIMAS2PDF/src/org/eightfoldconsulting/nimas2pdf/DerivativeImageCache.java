@@ -0,0 +1,198 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * On disk store of resized copies of package images, so that the images of a
+ * package are never overwritten.
+ * <p>
+ * A derivative is named after the SHA-1 of the source image, the pixel box it
+ * was shrunk to and the DPI of the page profile, which makes it shared by
+ * every package holding the same image and every profile asking for the same
+ * size, see ImageStore. With imageDerivatives set, XMLConverter hands FOP the derivatives
+ * instead of the package images, see DerivativeImageFilter.
+ *
+ * @author Gregory Buchenberger
+ */
+public class DerivativeImageCache {
+
+    private static Logger logger = Logger.getLogger(DerivativeImageCache.class.getName());
+    private static final Map<String, DerivativeImageCache> caches = new HashMap<String, DerivativeImageCache>();
+    private File dir;
+    private ImageResizer resizer;
+    private AtomicInteger partCount = new AtomicInteger();
+
+    /**
+     *
+     * @param dir cache directory
+     * @param resizer backend, called from several threads at once
+     */
+    public DerivativeImageCache(File dir, ImageResizer resizer) {
+        this.dir = dir;
+        this.resizer = resizer;
+    }
+
+    /**
+     * Returns the process wide cache in the imageCacheDir directory,
+     * ~/.nimas2pdf/images by default.
+     * @param props application settings
+     * @return the cache, using the configured resizer
+     */
+    public static DerivativeImageCache getDerivativeImageCache(Properties props) {
+        String dirName = props.getProperty("imageCacheDir", "");
+        File dir = dirName.length() != 0 ? new File(dirName) : new File(ApplicationProperties.getUserDir(), "images");
+        synchronized (caches) {
+            DerivativeImageCache cache = caches.get(dir.getAbsolutePath());
+            if (cache == null) {
+                cache = new DerivativeImageCache(dir, ImageResizer.newImageResizer(props));
+                caches.put(dir.getAbsolutePath(), cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @param props application settings
+     * @return true if conversions use derivatives, see the imageDerivatives
+     * setting
+     */
+    public static boolean isEnabled(Properties props) {
+        return Boolean.parseBoolean(props.getProperty("imageDerivatives"));
+    }
+
+    /**
+     * @param inches page dimension, e.g. imageWidth
+     * @param dpi resolution, e.g. imageDPI
+     * @return the dimension in pixels
+     * @throws NumberFormatException if either is not a number
+     */
+    public static int toPixels(String inches, String dpi) {
+        return Math.round(Float.parseFloat(inches.trim()) * Integer.parseInt(dpi.trim()));
+    }
+
+    /**
+     * Returns the image shrunk to fit within width x height pixels, resizing
+     * it on first use. Concurrent calls for the same derivative may both
+     * resize the image, the last one wins.
+     * @param source package image, never modified
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @param dpi resolution of the page profile
+     * @return the derivative, the source itself if its header shows it
+     * already fits, null if it could not be resized
+     */
+    public File getDerivative(File source, int width, int height, int dpi) {
+        try {
+            Dimension size = ImageSizeProbe.getSize(source);
+            if (size != null && size.width <= width && size.height <= height) {
+                return source;
+            }
+            return getFile(source, ImageStore.getImageStore().getHash(source) + "-" + width + "x" + height + "-" + dpi, width, height, 0);
+        } catch (IOException ex) {
+            logger.severe("Error resizing " + source.getName() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the image resampled to width x height pixels and recorded at
+     * the given resolution, see DownsamplingImageFilter, creating it on
+     * first use.
+     * @param source package image, never modified
+     * @param width Width in pixels, no more than that of the source
+     * @param height Height in pixels, no more than that of the source
+     * @param resolution pixels per inch
+     * @return the derivative, null if it could not be created
+     */
+    public File getResampled(File source, int width, int height, double resolution) {
+        try {
+            String key = ImageStore.getImageStore().getHash(source) + "-" + width + "x" + height + "-"
+                    + String.format(Locale.US, "%.2f", resolution) + "ppi";
+            return getFile(source, key, width, height, resolution);
+        } catch (IOException ex) {
+            logger.severe("Error resampling " + source.getName() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return the derivative named key, null if the resizer failed
+     */
+    private File getFile(File source, String key, int width, int height, double resolution) throws IOException {
+        String name = source.getName();
+        String extension = name.lastIndexOf('.') > 0 ? name.substring(name.lastIndexOf('.')).toLowerCase() : "";
+        File subdir = new File(dir, key.substring(0, 2));
+        File derivative = new File(subdir, key + extension);
+        if (derivative.isFile()) {
+            ImageStore.getImageStore().resizeSaved(source);
+            return derivative;
+        }
+        if (!subdir.isDirectory() && !subdir.mkdirs() && !subdir.isDirectory()) {
+            throw new IOException("Unable to create " + subdir.getPath());
+        }
+        // the resizer picks the format from the extension, so it goes last
+        File partFile = new File(subdir, key + "." + partCount.incrementAndGet() + ".part" + extension);
+        try {
+            if (!resizer.resize(source, partFile, width, height, resolution)) {
+                return null;
+            }
+            if (!partFile.renameTo(derivative)) {
+                derivative.delete();
+                if (!partFile.renameTo(derivative)) {
+                    throw new IOException("Unable to write " + derivative.getPath());
+                }
+            }
+        } finally {
+            partFile.delete();
+        }
+        logger.fine("Cached " + source.getName() + " as " + derivative.getName());
+        return derivative;
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Removes the cache directory with every derivative in it, for caches
+     * kept only as long as a conversion.
+     */
+    public void delete() {
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                File[] files = subdir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+                subdir.delete();
+            }
+        }
+        dir.delete();
+    }
+}
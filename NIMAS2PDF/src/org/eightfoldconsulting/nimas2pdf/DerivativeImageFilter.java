@@ -0,0 +1,73 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import org.xml.sax.ContentHandler;
+
+/**
+ * ImageURIFilter pointing FOP at resized copies of local images from a
+ * DerivativeImageCache. Images that cannot be resized are left as they are.
+ *
+ * @author Gregory Buchenberger
+ */
+public class DerivativeImageFilter extends ImageURIFilter {
+
+    private DerivativeImageCache cache;
+    private int width;
+    private int height;
+    private int dpi;
+
+    /**
+     *
+     * @param handler FOP's handler
+     * @param baseURI URI relative image references resolve against
+     * @param cache derivative store
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @param dpi resolution of the page profile
+     */
+    public DerivativeImageFilter(ContentHandler handler, String baseURI, DerivativeImageCache cache,
+            int width, int height, int dpi) {
+        super(handler, baseURI);
+        this.cache = cache;
+        this.width = width;
+        this.height = height;
+        this.dpi = dpi;
+    }
+
+    @Override
+    protected String resolve(String src) {
+        String uri = super.resolve(src);
+        if (!uri.startsWith("file:")) {
+            return uri;
+        }
+        File file;
+        try {
+            file = new File(new URI(uri));
+        } catch (URISyntaxException ex) {
+            return uri;
+        } catch (IllegalArgumentException ex) {
+            // not a plain file path
+            return uri;
+        }
+        if (!file.isFile()) {
+            // left to FOP to report
+            return uri;
+        }
+        File derivative = cache.getDerivative(file, width, height, dpi);
+        return derivative != null ? derivative.toURI().toString() : uri;
+    }
+}
@@ -0,0 +1,192 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Logger;
+import org.apache.fop.apps.FOUserAgent;
+import org.apache.xmlgraphics.image.loader.ImageException;
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSize;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * ImageURIFilter handing FOP raster images downsampled to the resolution
+ * they are printed at.
+ * <p>
+ * images.xsl places every image at its intrinsic size, which FOP does not
+ * reduce to the page, so the placed size is the intrinsic size shrunk to fit
+ * the smallest fo:region-body of the layout-master-set, read from the page
+ * masters as they pass by, as an image may land on any of them. Images with more pixels than the placed size at
+ * the target DPI are resampled, and images larger than the region are
+ * recorded at a resolution that makes them fit, into a DerivativeImageCache.
+ * Other images are left as they are.
+ *
+ * @author Gregory Buchenberger
+ */
+public class DownsamplingImageFilter extends ImageURIFilter {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+    private DerivativeImageCache cache;
+    private int dpi;
+    private FOUserAgent userAgent;
+    // page master being read, in inches
+    private double pageWidth;
+    private double pageHeight;
+    private double[] pageMargins;
+    // smallest region-body so far in inches, 0 while unknown
+    private double bodyWidth;
+    private double bodyHeight;
+
+    /**
+     *
+     * @param handler FOP's handler
+     * @param baseURI URI relative image references resolve against
+     * @param cache derivative store
+     * @param dpi target resolution
+     * @param userAgent user agent of the rendering, for its image manager
+     */
+    public DownsamplingImageFilter(ContentHandler handler, String baseURI, DerivativeImageCache cache, int dpi,
+            FOUserAgent userAgent) {
+        super(handler, baseURI);
+        this.cache = cache;
+        this.dpi = dpi;
+        this.userAgent = userAgent;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (FO_NAMESPACE.equals(uri)) {
+            if (localName.equals("simple-page-master")) {
+                pageWidth = toInches(atts.getValue("page-width"));
+                pageHeight = toInches(atts.getValue("page-height"));
+                pageMargins = getMargins(atts);
+            } else if (localName.equals("region-body") && pageMargins != null) {
+                double[] margins = getMargins(atts);
+                double width = pageWidth - pageMargins[1] - pageMargins[3] - margins[1] - margins[3];
+                double height = pageHeight - pageMargins[0] - pageMargins[2] - margins[0] - margins[2];
+                if (pageWidth > 0 && pageHeight > 0 && isKnown(pageMargins) && isKnown(margins)
+                        && width > 0 && height > 0) {
+                    bodyWidth = bodyWidth > 0 ? Math.min(bodyWidth, width) : width;
+                    bodyHeight = bodyHeight > 0 ? Math.min(bodyHeight, height) : height;
+                }
+            }
+        }
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    @Override
+    protected String resolve(String src) {
+        String uri = super.resolve(src);
+        if (!uri.startsWith("file:")) {
+            return uri;
+        }
+        try {
+            ImageInfo info = userAgent.getFactory().getImageManager().getImageInfo(uri,
+                    userAgent.getImageSessionContext());
+            String mimeType = info.getMimeType();
+            // GIF has no resolution to make a large image fit with
+            if (!"image/png".equals(mimeType) && !"image/jpeg".equals(mimeType)) {
+                return uri;
+            }
+            ImageSize size = info.getSize();
+            double width = size.getWidthMpt() / 72000.0;
+            double height = size.getHeightMpt() / 72000.0;
+            double fit = 1.0;
+            if (bodyWidth > 0) {
+                fit = Math.min(fit, Math.min(bodyWidth / width, bodyHeight / height));
+            }
+            double placedWidth = width * fit;
+            double placedHeight = height * fit;
+            double scale = Math.min(1.0, Math.min(placedWidth * dpi / size.getWidthPx(),
+                    placedHeight * dpi / size.getHeightPx()));
+            int targetWidth = Math.max(1, (int) Math.round(size.getWidthPx() * scale));
+            int targetHeight = Math.max(1, (int) Math.round(size.getHeightPx() * scale));
+            if (fit >= 1.0 && targetWidth == size.getWidthPx() && targetHeight == size.getHeightPx()) {
+                return uri;
+            }
+            File derivative = cache.getResampled(new File(new URI(uri)), targetWidth, targetHeight,
+                    targetWidth / placedWidth);
+            return derivative != null ? derivative.toURI().toString() : uri;
+        } catch (ImageException ex) {
+            // left to FOP to report
+            logger.fine("Not downsampled: " + ex.getMessage());
+        } catch (IOException ex) {
+            logger.fine("Not downsampled: " + ex.getMessage());
+        } catch (URISyntaxException ex) {
+            logger.fine("Not downsampled: " + ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            // not a plain file path
+            logger.fine("Not downsampled: " + ex.getMessage());
+        }
+        return uri;
+    }
+
+    /**
+     * @return top, right, bottom and left margins in inches
+     */
+    private double[] getMargins(Attributes atts) {
+        return new double[]{toInches(atts.getValue("margin-top")), toInches(atts.getValue("margin-right")),
+                    toInches(atts.getValue("margin-bottom")), toInches(atts.getValue("margin-left"))};
+    }
+
+    private static boolean isKnown(double[] margins) {
+        for (double margin : margins) {
+            if (margin < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param length absolute length such as 8.5in, may be null
+     * @return the length in inches, 0 if absent, -1 if not understood
+     */
+    private static double toInches(String length) {
+        if (length == null || length.trim().length() == 0) {
+            return 0;
+        }
+        String s = length.trim();
+        int i = 0;
+        while (i < s.length() && (Character.isDigit(s.charAt(i)) || s.charAt(i) == '.')) {
+            i++;
+        }
+        double value;
+        try {
+            value = Double.parseDouble(s.substring(0, i));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+        String unit = s.substring(i).trim();
+        if (unit.equals("in")) {
+            return value;
+        } else if (unit.equals("cm")) {
+            return value / 2.54;
+        } else if (unit.equals("mm")) {
+            return value / 25.4;
+        } else if (unit.equals("pt")) {
+            return value / 72;
+        } else if (unit.equals("pc")) {
+            return value / 6;
+        } else if (value == 0) {
+            return 0;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,64 @@
+
+package org.eightfoldconsulting.nimas2pdf;
+
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.apache.commons.io.DirectoryWalker;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.apache.commons.io.filefilter.HiddenFileFilter;
+import org.apache.commons.io.filefilter.IOFileFilter;
+
+/**
+ * Finds NIMAS package files below a directory.
+ *
+ * @author Gregory Buchenberger
+ */
+public class FindOPFFilesDirectoryWalker extends DirectoryWalker {
+
+    // Create a filter for Non-hidden directories
+    private static IOFileFilter dirFilter = FileFilterUtils.andFileFilter(FileFilterUtils.directoryFileFilter(), HiddenFileFilter.VISIBLE);
+
+    private static IOFileFilter fileFilter = FileFilterUtils.andFileFilter(FileFilterUtils.fileFileFilter(),
+            FileFilterUtils.suffixFileFilter("." + Utils.opf));
+
+    // Combine the directory and file filters using an OR condition
+    private static FileFilter filter = FileFilterUtils.orFileFilter(dirFilter, fileFilter);
+
+    /**
+     *
+     */
+    public FindOPFFilesDirectoryWalker() {
+        super(filter, -1);
+    }
+
+    /**
+     *
+     * @param file
+     * @param depth
+     * @param results
+     * @throws IOException
+     */
+    // commons-io 1.3 walkers are not generic
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Override
+    protected void handleFile(final File file, final int depth, final Collection results) throws IOException {
+        results.add(file);
+    }
+
+    /**
+     *
+     * @param dir
+     * @return the package files found, empty if none
+     * @throws IOException
+     */
+    public List<File> getFiles(File dir) throws IOException {
+        List<File> files = new ArrayList<File>();
+        walk(dir, files);
+        return files;
+    }
+}
@@ -0,0 +1,330 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.ConfigurationException;
+import org.apache.avalon.framework.configuration.DefaultConfiguration;
+import org.apache.commons.io.FileUtils;
+import org.apache.fop.Version;
+import org.apache.fop.apps.FOPException;
+import org.apache.fop.fonts.EmbedFontInfo;
+import org.apache.fop.fonts.FontInfoConfigurator;
+import org.apache.fop.fonts.FontManager;
+import org.apache.fop.fonts.FontResolver;
+import org.apache.fop.fonts.FontTriplet;
+import org.apache.fop.fonts.autodetect.FontFinder;
+import org.apache.fop.fonts.autodetect.MacFontDirFinder;
+import org.apache.fop.fonts.autodetect.UnixFontDirFinder;
+import org.apache.fop.fonts.autodetect.WindowsFontDirFinder;
+
+/**
+ * Persistent list of the fonts found by the directory and auto-detect
+ * entries of the FOP configuration.
+ * <p>
+ * FOP 1.0 walks the configured font directories, and with auto-detect the
+ * font base and the system font directories, for every document it renders.
+ * The fonts found are stored in ~/.nimas2pdf/fonts.cache together with the
+ * modification times of every directory walked, and the configuration is
+ * rewritten to list them as explicit font entries, which FOP loads lazily.
+ * The directories are walked again only when one of them, or the
+ * configuration, changes, or after {@link #rebuild()}.
+ *
+ * @author Gregory Buchenberger
+ */
+public class FontListCache {
+
+    private static Logger logger = Logger.getLogger(FontListCache.class.getName());
+    private static final FileFilter DIRECTORIES = new FileFilter() {
+
+        public boolean accept(File file) {
+            // FOP's font finder skips hidden directories as well
+            return file.isDirectory() && !file.getName().startsWith(".");
+        }
+    };
+
+    private FontListCache() {
+    }
+
+    /**
+     * @return the cache file
+     */
+    public static File getCacheFile() {
+        return new File(ApplicationProperties.getUserDir(), "fonts.cache");
+    }
+
+    /**
+     * Forgets the fonts found, so that the next configured FopFactory walks
+     * the font directories again.
+     */
+    public static synchronized void rebuild() {
+        File file = getCacheFile();
+        if (file.exists() && !file.delete()) {
+            logger.warning("Unable to delete " + file.getPath());
+        }
+    }
+
+    /**
+     * Replaces the directory and auto-detect entries of each renderer's fonts
+     * with the fonts they find, reading them from the cache when it is still
+     * valid.
+     * @param cfg FOP configuration
+     * @param fontManager font manager configured by cfg, used to find fonts
+     * @param fontResolver resolves font URLs while fonts are found
+     * @return cfg if it has no directory or auto-detect entries, otherwise a
+     * rewritten copy
+     * @throws ConfigurationException
+     * @throws FOPException if fonts cannot be found
+     */
+    public static synchronized Configuration resolveFonts(Configuration cfg, FontManager fontManager,
+            FontResolver fontResolver) throws ConfigurationException, FOPException {
+        if (!hasFontDirectories(cfg)) {
+            return cfg;
+        }
+        Map<String, Entry> entries = load();
+        Map<String, Entry> loaded = new HashMap<String, Entry>(entries);
+        Configuration result = copy(cfg, entries, fontManager, fontResolver);
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (loaded.get(entry.getKey()) != entry.getValue()) {
+                save(entries);
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasFontDirectories(Configuration cfg) {
+        for (Configuration renderer : cfg.getChild("renderers").getChildren("renderer")) {
+            Configuration fonts = renderer.getChild("fonts");
+            if (fonts.getChildren("directory").length != 0 || fonts.getChild("auto-detect", false) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Configuration copy(Configuration cfg, Map<String, Entry> entries, FontManager fontManager,
+            FontResolver fontResolver) throws ConfigurationException, FOPException {
+        DefaultConfiguration copy = new DefaultConfiguration(cfg.getName(), cfg.getLocation());
+        for (String name : cfg.getAttributeNames()) {
+            copy.setAttribute(name, cfg.getAttribute(name));
+        }
+        String value = cfg.getValue(null);
+        if (value != null) {
+            copy.setValue(value);
+        }
+        boolean fonts = cfg.getName().equals("fonts");
+        for (Configuration child : cfg.getChildren()) {
+            if (fonts && (child.getName().equals("directory") || child.getName().equals("auto-detect"))) {
+                continue;
+            }
+            copy.addChild(copy(child, entries, fontManager, fontResolver));
+        }
+        if (fonts && (cfg.getChildren("directory").length != 0 || cfg.getChild("auto-detect", false) != null)) {
+            for (EmbedFontInfo info : getFonts(cfg, entries, fontManager, fontResolver)) {
+                copy.addChild(toConfiguration(info));
+            }
+        }
+        return copy;
+    }
+
+    private static List<EmbedFontInfo> getFonts(Configuration fonts, Map<String, Entry> entries,
+            FontManager fontManager, FontResolver fontResolver) throws FOPException {
+        Map<File, Boolean> roots = getRoots(fonts, fontManager);
+        String key = getKey(roots);
+        Entry entry = entries.get(key);
+        Map<String, Long> directories = getDirectories(roots);
+        if (entry != null && entry.directories.equals(directories)) {
+            return entry.fonts;
+        }
+        long start = System.currentTimeMillis();
+        // only the directory and auto-detect entries, as the others are kept
+        DefaultConfiguration scan = new DefaultConfiguration("renderer");
+        DefaultConfiguration scanFonts = new DefaultConfiguration("fonts");
+        for (Configuration child : fonts.getChildren()) {
+            if (child.getName().equals("directory") || child.getName().equals("auto-detect")) {
+                scanFonts.addChild(child);
+            }
+        }
+        scan.addChild(scanFonts);
+        List<EmbedFontInfo> found = new ArrayList<EmbedFontInfo>();
+        new FontInfoConfigurator(scan, fontManager, fontResolver, null, false).configure(found);
+        entry = new Entry();
+        entry.directories = directories;
+        entry.fonts = found;
+        entries.put(key, entry);
+        logger.info("Found " + found.size() + " fonts in " + directories.size() + " directories in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return found;
+    }
+
+    /**
+     * Lists the directories FOP walks for the given fonts element.
+     * @return directory, true if walked recursively
+     */
+    private static Map<File, Boolean> getRoots(Configuration fonts, FontManager fontManager) {
+        Map<File, Boolean> roots = new LinkedHashMap<File, Boolean>();
+        for (Configuration directory : fonts.getChildren("directory")) {
+            String path = directory.getValue(null);
+            if (path != null) {
+                roots.put(new File(path).getAbsoluteFile(), directory.getAttributeAsBoolean("recursive", false));
+            }
+        }
+        if (fonts.getChild("auto-detect", false) != null) {
+            if (fontManager.getFontBaseURL() != null) {
+                try {
+                    File fontBase = FileUtils.toFile(new URL(fontManager.getFontBaseURL()));
+                    if (fontBase != null) {
+                        roots.put(fontBase.getAbsoluteFile(), Boolean.TRUE);
+                    }
+                } catch (IOException ex) {
+                    logger.warning("Invalid font base " + fontManager.getFontBaseURL());
+                }
+            }
+            FontFinder finder;
+            String osName = System.getProperty("os.name");
+            if (osName.startsWith("Windows")) {
+                finder = new WindowsFontDirFinder();
+            } else if (osName.startsWith("Mac")) {
+                finder = new MacFontDirFinder();
+            } else {
+                finder = new UnixFontDirFinder();
+            }
+            try {
+                for (Object dir : finder.find()) {
+                    roots.put(((File) dir).getAbsoluteFile(), Boolean.TRUE);
+                }
+            } catch (IOException ex) {
+                logger.warning("Unable to list system font directories: " + ex.getMessage());
+            }
+        }
+        return roots;
+    }
+
+    private static String getKey(Map<File, Boolean> roots) {
+        StringBuilder key = new StringBuilder(Version.getVersion());
+        for (Map.Entry<File, Boolean> root : roots.entrySet()) {
+            key.append('|').append(root.getKey().getPath()).append(root.getValue().booleanValue() ? "/**" : "");
+        }
+        // auto-detect also registers fonts found on the class path
+        return key.append('|').append(System.getProperty("java.class.path")).toString();
+    }
+
+    private static Map<String, Long> getDirectories(Map<File, Boolean> roots) {
+        Map<String, Long> directories = new HashMap<String, Long>();
+        for (Map.Entry<File, Boolean> root : roots.entrySet()) {
+            addDirectory(directories, root.getKey(), root.getValue().booleanValue());
+        }
+        return directories;
+    }
+
+    private static void addDirectory(Map<String, Long> directories, File dir, boolean recursive) {
+        if (directories.containsKey(dir.getPath())) {
+            return;
+        }
+        directories.put(dir.getPath(), dir.lastModified());
+        File[] children = recursive ? dir.listFiles(DIRECTORIES) : null;
+        for (int i = 0; children != null && i < children.length; i++) {
+            addDirectory(directories, children[i], true);
+        }
+    }
+
+    private static Configuration toConfiguration(EmbedFontInfo info) {
+        DefaultConfiguration font = new DefaultConfiguration("font");
+        if (info.getMetricsFile() != null) {
+            font.setAttribute("metrics-url", info.getMetricsFile());
+        }
+        if (info.getEmbedFile() != null) {
+            font.setAttribute("embed-url", info.getEmbedFile());
+        }
+        if (info.getSubFontName() != null) {
+            font.setAttribute("sub-font", info.getSubFontName());
+        }
+        font.setAttribute("kerning", info.getKerning());
+        font.setAttribute("encoding-mode", info.getEncodingMode().getName());
+        for (Object o : info.getFontTriplets()) {
+            FontTriplet triplet = (FontTriplet) o;
+            DefaultConfiguration tripletCfg = new DefaultConfiguration("font-triplet");
+            tripletCfg.setAttribute("name", triplet.getName());
+            tripletCfg.setAttribute("style", triplet.getStyle());
+            tripletCfg.setAttribute("weight", triplet.getWeight());
+            font.addChild(tripletCfg);
+        }
+        return font;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Entry> load() {
+        File file = getCacheFile();
+        if (!file.isFile()) {
+            return new HashMap<String, Entry>();
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+            try {
+                return (Map<String, Entry>) in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (Exception ex) {
+            logger.warning("Ignoring unreadable font cache " + file.getPath() + ": " + ex.getMessage());
+            return new HashMap<String, Entry>();
+        }
+    }
+
+    private static void save(Map<String, Entry> entries) {
+        File file = getCacheFile();
+        File partFile = new File(file.getPath() + ".part");
+        try {
+            file.getParentFile().mkdirs();
+            ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(partFile));
+            try {
+                out.writeObject(entries);
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (!partFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + partFile.getPath());
+            }
+        } catch (IOException ex) {
+            partFile.delete();
+            logger.warning("Unable to write font cache " + file.getPath() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * The fonts found for one fonts element and the directories walked.
+     */
+    private static class Entry implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private Map<String, Long> directories;
+        private List<EmbedFontInfo> fonts;
+    }
+}
@@ -0,0 +1,109 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.apache.avalon.framework.configuration.Configuration;
+import org.apache.avalon.framework.configuration.DefaultConfigurationBuilder;
+import org.apache.fop.apps.FopFactory;
+import org.apache.fop.render.DefaultFontResolver;
+
+/**
+ * Process wide FopFactory instances, one per FOP configuration file.
+ * <p>
+ * A configured FopFactory is thread safe and holds FOP's image and font
+ * caches, so sharing it lets one conversion reuse what the previous ones
+ * loaded. Nothing job specific may be set on a shared factory; the base URL
+ * of each document goes on its FOUserAgent instead.
+ * <p>
+ * The fonts in the configured font directories are looked up through
+ * FontListCache rather than on every rendering.
+ *
+ * @author Gregory Buchenberger
+ */
+public class FopFactoryCache {
+
+    private static Logger logger = Logger.getLogger(FopFactoryCache.class.getName());
+    private static final Map<String, FopFactory> factories = new HashMap<String, FopFactory>();
+
+    private FopFactoryCache() {
+    }
+
+    /**
+     * Returns the factory for the given configuration, creating it on first
+     * use. Editing the configuration file yields a new factory.
+     * @param userConfig FOP configuration file
+     * @return a configured, shared factory
+     */
+    public static FopFactory getFopFactory(File userConfig) {
+        String key = getKey(userConfig);
+        synchronized (factories) {
+            FopFactory fopFactory = factories.get(key);
+            if (fopFactory == null) {
+                fopFactory = FopFactory.newInstance();
+                // image decoding shows up in the conversion profile
+                ProfiledImageLoaderFactory.install(fopFactory.getImageManager().getRegistry());
+                try {
+                    Configuration cfg = new DefaultConfigurationBuilder().buildFromFile(userConfig);
+                    fopFactory.setUserConfig(cfg);
+                    // the font base is known once configured, the fonts are found now
+                    Configuration resolved = FontListCache.resolveFonts(cfg, fopFactory.getFontManager(),
+                            new DefaultFontResolver(fopFactory.newFOUserAgent()));
+                    if (resolved != cfg) {
+                        fopFactory.setUserConfig(resolved);
+                    }
+                } catch (Exception ex) {
+                    logger.severe(ex.getMessage());
+                }
+                factories.put(key, fopFactory);
+                logger.info("Configured FOP using " + userConfig.getPath());
+            }
+            return fopFactory;
+        }
+    }
+
+    /**
+     * Empties the image caches of all factories, so images edited since are
+     * loaded again. FOP keys its cache by URI and never checks the files.
+     */
+    public static void clearImageCaches() {
+        synchronized (factories) {
+            for (FopFactory fopFactory : factories.values()) {
+                fopFactory.getImageManager().getCache().clearCache();
+            }
+        }
+    }
+
+    /**
+     * Drops all factories, releasing their caches.
+     */
+    public static void clear() {
+        synchronized (factories) {
+            factories.clear();
+        }
+    }
+
+    private static String getKey(File userConfig) {
+        String path;
+        try {
+            path = userConfig.getCanonicalPath();
+        } catch (IOException ex) {
+            path = userConfig.getAbsolutePath();
+        }
+        return path + "@" + userConfig.lastModified();
+    }
+}
@@ -11,15 +11,20 @@
 package org.eightfoldconsulting.nimas2pdf;
 
 import java.awt.Cursor;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.List;
 import java.util.logging.Logger;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.SwingWorker;
-import org.w3c.dom.NodeList;
 
 /**
+ * Shrinks the images of a package into the derivative image cache, leaving
+ * the package as it is, and makes the page profile the one conversions use.
  *
  * @author Gregory Buchenberger
  */
@@ -29,6 +34,9 @@ public class FrameImageResize extends javax.swing.JFrame {
     /** Creates new form FrameImageResize */
     public FrameImageResize() {
         initComponents();
+        jFormattedTextFieldWidth.setText(FrameMain.applicationProps.getProperty("imageWidth", "9.5"));
+        jFormattedTextFieldHeight.setText(FrameMain.applicationProps.getProperty("imageHeight", "5.5"));
+        jFormattedTextFieldDPI.setText(FrameMain.applicationProps.getProperty("imageDPI", "300"));
     }
 
     /** This method is called from within the constructor to
@@ -218,7 +226,8 @@ public class FrameImageResize extends javax.swing.JFrame {
         File opfFile;
         //File sourceDir;
         String source = jTextFieldOPFDir.getText();
-        if (FrameMain.applicationProps.getProperty("imagemagickdir").isEmpty()) {
+        if ("imagemagick".equals(FrameMain.applicationProps.getProperty("imageResizer"))
+                && FrameMain.applicationProps.getProperty("imagemagickdir").isEmpty()) {
             JOptionPane.showMessageDialog(null, "Please set the path to the ImageMagick directory in Global options menu.", "Oops!", JOptionPane.ERROR_MESSAGE);
             //logger.severe("Image resize failed. ImageMagick must be installed and the directory must be set in Options > Global Options > ImageMagick.");
             jButtonShrink.setEnabled(true);
@@ -234,13 +243,22 @@ public class FrameImageResize extends javax.swing.JFrame {
             //sourceDir = new File(sourceFile.getParent());
             
             setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-            int dpi = Integer.parseInt(jFormattedTextFieldDPI.getText());
-            Float iwidth = Float.parseFloat(jFormattedTextFieldWidth.getText());
-            int width = iwidth.intValue() * dpi;
-            Float iheight = Float.parseFloat(jFormattedTextFieldHeight.getText());
-            int height = iheight.intValue() * dpi;
+            int dpi = Integer.parseInt(jFormattedTextFieldDPI.getText().trim());
+            int width = DerivativeImageCache.toPixels(jFormattedTextFieldWidth.getText(), jFormattedTextFieldDPI.getText());
+            int height = DerivativeImageCache.toPixels(jFormattedTextFieldHeight.getText(), jFormattedTextFieldDPI.getText());
             //String imageDir = jTextFieldImageDir.getText();
-            ResizeTask task = new ResizeTask(opfFile, width, height);
+            ResizeTask task = new ResizeTask(opfFile, width, height, dpi);
+            jProgressBar.setMinimum(0);
+            jProgressBar.setMaximum(100);
+            jProgressBar.setStringPainted(true);
+            task.addPropertyChangeListener(new PropertyChangeListener() {
+
+                public void propertyChange(PropertyChangeEvent evt) {
+                    if ("progress".equals(evt.getPropertyName())) {
+                        jProgressBar.setValue((Integer) evt.getNewValue());
+                    }
+                }
+            });
             task.execute();
              //jButtonShrink.setEnabled(true);
             //setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
@@ -281,12 +299,14 @@ public class FrameImageResize extends javax.swing.JFrame {
         String imageDir;
         int width;
         int height;
+        int dpi;
 
-        ResizeTask(File opfFile, int width, int height) {
+        ResizeTask(File opfFile, int width, int height, int dpi) {
             //this.imageDir = imageDir;
             this.opfFile = opfFile;
             this.height = height;
             this.width = width;
+            this.dpi = dpi;
         }
 
         @Override
@@ -296,25 +316,46 @@ public class FrameImageResize extends javax.swing.JFrame {
                 //downsize images
                 File sourceDir = opfFile.getParentFile();
                 OPFReader opfReader = new OPFReader(opfFile);
-                String convertexec = FrameMain.applicationProps.getProperty("imagemagickdir") + File.separator + "convert";
-                File converter = new File(convertexec);
-                MagickWrapper magick = new MagickWrapper(converter);
-                NodeList nodes = opfReader.getImageList();
-                jProgressBar.setMinimum(0);
-                jProgressBar.setMaximum(nodes.getLength());
-                jProgressBar.setStringPainted(true);
-                        for (int i = 0; i < nodes.getLength(); i++) {
-                            File file = new File(sourceDir, nodes.item(i).getNodeValue());
-                            publish(String.format("processing image %s", file.getName()));
-                            magick.resize(file, file, width, height);
-                            jProgressBar.setValue(i);
-                        }
+                ImageResizePool pool = ImageResizePool.newImageResizePool(FrameMain.applicationProps);
+                pool.setDerivativeCache(DerivativeImageCache.getDerivativeImageCache(FrameMain.applicationProps), dpi);
+                final List<String> images = opfReader.getImages();
+                for (String image : images) {
+                    pool.add(new File(sourceDir, image));
+                }
+                pool.setListener(new ImageResizePool.Listener() {
+
+                    public void imageFinished(File file, boolean succeeded, int finished) {
+                        publish(String.format("processed image %s (%d of %d)", file.getName(), finished, images.size()));
+                        // the bar follows on the event dispatching thread
+                        setProgress(finished * 100 / images.size());
+                    }
+                });
+                List<File> failed = pool.run(width, height);
+                if (!failed.isEmpty()) {
+                    publish(String.format("%d images could not be resized, see the log", failed.size()));
+                }
+                saveProfile();
             } catch (Exception ex) {
                 System.out.println(ex.getMessage());
             } finally {
                 return null;
             }
         }
+        /**
+         * Makes conversions use the derivatives just created.
+         */
+        private void saveProfile() throws IOException {
+            FrameMain.applicationProps.setProperty("imageDerivatives", "true");
+            FrameMain.applicationProps.setProperty("imageWidth", jFormattedTextFieldWidth.getText().trim());
+            FrameMain.applicationProps.setProperty("imageHeight", jFormattedTextFieldHeight.getText().trim());
+            FrameMain.applicationProps.setProperty("imageDPI", String.valueOf(dpi));
+            FileOutputStream out = new FileOutputStream(ApplicationProperties.getUserPropertiesFile());
+            try {
+                FrameMain.applicationProps.store(out, "--- NIMAS2PDF properties file ---");
+            } finally {
+                out.close();
+            }
+        }
         /*
          * Executed in event dispatching thread
          */
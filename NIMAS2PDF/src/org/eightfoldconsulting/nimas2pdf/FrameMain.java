@@ -18,11 +18,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintStream;
 
 //logging
-import java.net.URLDecoder;
 import java.util.List;
 import java.util.Properties;
 import java.util.logging.Logger;
@@ -39,9 +37,8 @@ import javax.swing.SwingWorker;
 import javax.xml.transform.TransformerException;
 
 
-//FOP
-import org.apache.fop.apps.FOPException;
 import org.jdesktop.application.Action;
+import org.xml.sax.SAXException;
 
 /**
  *
@@ -50,7 +47,10 @@ import org.jdesktop.application.Action;
 public class FrameMain extends javax.swing.JFrame {
 
     Logger logger = Logger.getLogger(this.getClass().getName());
-    private static String jarDirPath;
+    /**
+     * Milliseconds between updates of the transformation status.
+     */
+    private static final long PROGRESS_INTERVAL = 500;
 
     /**
      *
@@ -65,13 +65,6 @@ public class FrameMain extends javax.swing.JFrame {
     public FrameMain() {
         initComponents();
         initLogging();
-        try {
-            File jarFile = new File(FrameMain.class.getProtectionDomain().getCodeSource().getLocation().getPath().toString());
-            String jarDir = jarFile.getParent().toString();
-            jarDirPath = URLDecoder.decode(jarDir, "UTF-8");
-        } catch (Exception ex) {
-            logger.severe(ex.getMessage());
-        }
         try {
             initProperties();
         } catch (FileNotFoundException ex) {
@@ -347,20 +340,11 @@ public class FrameMain extends javax.swing.JFrame {
     }
 
     private void initProperties() throws FileNotFoundException, IOException {
-        // load default properties from classpath
-        Properties defaultProps = new Properties();
-        ClassLoader loader = ClassLoader.getSystemClassLoader();
-        InputStream in = loader.getResourceAsStream ("org/eightfoldconsulting/nimas2pdf/resources/default.properties");
-        defaultProps.load(in);
-        in.close();
-        // create application properties with default
-        applicationProps = new Properties(defaultProps);
+        // create application properties with defaults loaded from classpath
+        applicationProps = new Properties(ApplicationProperties.loadDefaults());
         // now load application  properties from file system
-
-       File applicationPropertiesFile = new File(System.getProperty("user.home")+File.separator+".nimas2pdf"+File.separator+ "application.properties");
-       //File applicationPropertiesFile = new File(jarDirPath, File.separator + "conf" + File.separator + "application.properties");
-       applicationPropertiesFilePath = applicationPropertiesFile.getCanonicalPath().toString();
-        in = loader.getResourceAsStream ("org/eightfoldconsulting/nimas2pdf/resources/application.properties");
+        File applicationPropertiesFile = ApplicationProperties.getUserPropertiesFile();
+        applicationPropertiesFilePath = applicationPropertiesFile.getCanonicalPath();
         FileInputStream fin = new FileInputStream(applicationPropertiesFile);
         applicationProps.load(fin);
         fin.close();
@@ -369,93 +353,41 @@ public class FrameMain extends javax.swing.JFrame {
     //background thread
     private class TransformTask extends SwingWorker<Void, String> {
 
+        private File sourceFile;
+        private ConversionJob.Mode mode;
+
+        TransformTask(File sourceFile, ConversionJob.Mode mode) {
+            this.sourceFile = sourceFile;
+            this.mode = mode;
+        }
+
         @Override
         protected Void doInBackground() {
-            File sourceFile;
-            File sourceDir;
-            File xsltfile = new File(jarDirPath, "xml/xslt/"+applicationProps.getProperty("stylesheet"));
-            String source = sourceXMLTextField.getText();
-            if (source.length() != 0) {
-                sourceFile = new File(sourceXMLTextField.getText());
-                sourceDir = new File(sourceFile.getParent());
-                publish(String.format("transforming %s", sourceFile.getName()));
-            } else {
-                JOptionPane.showMessageDialog(null, "Please select a NIMAS package file.", "Oops!", JOptionPane.ERROR_MESSAGE);
-                transformButton.setEnabled(true);
-                setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
-                return null;
-            }
-
-            //DTBook to XSL-FO
-            if (sourceNIMASRadioButtonMenuItem.isSelected() && renderFormatXSLFORadioButtonMenuItem.isSelected()) {
-                //parse OPF
-                OPFReader opfReader = new OPFReader(sourceFile);
-                String nimasID = opfReader.getIdentifier();
-                File xmlfile = new File(sourceDir, opfReader.getDaisyXML());
-                File fofile = new File(sourceDir, nimasID + ".fo");
-                XMLConverter xc = new XMLConverter(xmlfile, xsltfile);
-                publish("Transforming. Please wait...");
-                try {
-                    xc.convertNIMAS2FO(fofile);
-                } catch (IOException e) {
-                    logger.severe(e.getMessage());
-                } catch (TransformerException e) {
-                    logger.severe(e.getMessage());
-                } finally {
-                    publish("Transformation complete.");
-                    transformButton.setEnabled(true);
-                    setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
-                    return null;
-                }
-                //DTBook to PDF
-            } else if (sourceNIMASRadioButtonMenuItem.isSelected() && renderFormatPDFRadioButtonMenuItem.isSelected()) {
-                //parse OPF
-                OPFReader opfReader = new OPFReader(sourceFile);
-                String nimasID = opfReader.getIdentifier();
-                File xmlfile = new File(sourceDir, opfReader.getDaisyXML());
-                XMLConverter xc = new XMLConverter(xmlfile, xsltfile);
-                File pdffile = new File(sourceDir, nimasID + ".pdf");
-                //do FOP transformation
-                publish("Transforming. Please wait...");
-                try {
-                    xc.convertXML2PDF(opfReader, pdffile);
-                } catch (IOException e) {
-                    logger.severe(e.getMessage());
-                } catch (TransformerException e) {
-                    logger.severe(e.getMessage());
-                } catch (FOPException e) {
-                    logger.severe(e.getMessage());
-                } finally {
-                    publish("Transformation complete.");
-                    transformButton.setEnabled(true);
-                    setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
-                    return null;
-                }
-            //XSL-FO to PDF
-            } else if (sourceXSLFORadioButtonMenuItem.isSelected() && renderFormatPDFRadioButtonMenuItem.isSelected()) {
-                //parse OPF
-                OPFReader opfReader = new OPFReader(sourceFile);
-                String nimasID = opfReader.getIdentifier();
-                File xmlfile = new File(sourceDir, nimasID + ".fo");
-                XMLConverter xc = new XMLConverter(xmlfile, xsltfile);
-                File fofile = new File(sourceDir, nimasID + ".pdf");
-                //do FOP transformation
-                publish("Transforming. Please wait...");
-                try {
-                    xc.convertFO2PDF(opfReader, fofile);
-                } catch (IOException e) {
-                    logger.severe(e.getMessage());
-                } catch (FOPException e) {
-                    logger.severe(e.getMessage());
-                } finally {
-                    publish("Transformation complete.");
-                    transformButton.setEnabled(true);
-                    setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
-                    return null;
+            publish(String.format("transforming %s", sourceFile.getName()));
+            ConversionJob job = new ConversionJob(sourceFile, null, mode, applicationProps);
+            ConversionProgress progress = new ConversionProgress(PROGRESS_INTERVAL);
+            progress.addListener(new ConversionProgress.Listener() {
+
+                public void progressChanged(ConversionProgress progress) {
+                    // shown on the event dispatching thread by process
+                    publish("Transforming: " + progress.getSummary());
                 }
+            });
+            job.setProgress(progress);
+            // the images may have been edited or resized since the last run
+            FopFactoryCache.clearImageCaches();
+            publish("Transforming. Please wait...");
+            try {
+                job.run();
+            } catch (IOException e) {
+                logger.severe(e.getMessage());
+            } catch (SAXException e) {
+                logger.severe(e.getMessage());
+            } catch (TransformerException e) {
+                logger.severe(e.getMessage());
+            } finally {
+                publish("Transformation complete.");
             }
-            transformButton.setEnabled(true);
-            setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
             return null;
         }
 
@@ -464,6 +396,15 @@ public class FrameMain extends javax.swing.JFrame {
             String status = messages.get(messages.size() - 1);
             statusLabel.setText(status);
         }
+
+        /*
+         * Executed in event dispatching thread
+         */
+        @Override
+        protected void done() {
+            transformButton.setEnabled(true);
+            setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+        }
     }
 
     private void chooseSourceXMLButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_chooseSourceXMLButtonActionPerformed
@@ -482,10 +423,28 @@ public class FrameMain extends javax.swing.JFrame {
 
     @SuppressWarnings({"static-access", "static-access"})
     private void transformButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_transformButtonActionPerformed
+        String source = sourceXMLTextField.getText();
+        if (source.length() == 0) {
+            JOptionPane.showMessageDialog(null, "Please select a NIMAS package file.", "Oops!", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        ConversionJob.Mode mode;
+        if (sourceNIMASRadioButtonMenuItem.isSelected() && renderFormatXSLFORadioButtonMenuItem.isSelected()) {
+            //DTBook to XSL-FO
+            mode = ConversionJob.Mode.NIMAS2FO;
+        } else if (sourceNIMASRadioButtonMenuItem.isSelected() && renderFormatPDFRadioButtonMenuItem.isSelected()) {
+            //DTBook to PDF
+            mode = ConversionJob.Mode.NIMAS2PDF;
+        } else if (sourceXSLFORadioButtonMenuItem.isSelected() && renderFormatPDFRadioButtonMenuItem.isSelected()) {
+            //XSL-FO to PDF
+            mode = ConversionJob.Mode.FO2PDF;
+        } else {
+            return;
+        }
         resultTextArea.setText("");
         transformButton.setEnabled(false);
         setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-        TransformTask transformation = new TransformTask();
+        TransformTask transformation = new TransformTask(new File(source), mode);
         transformation.execute();
     }//GEN-LAST:event_transformButtonActionPerformed
 
@@ -0,0 +1,249 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Resizes the images of a package on a fixed size pool of worker threads,
+ * retrying images that fail. With the ImageMagick backend each worker runs
+ * one convert process at a time, see MagickWrapper for the timeout.
+ * <p>
+ * Images whose headers show they already fit are skipped, so that shrinking
+ * a package again does not rewrite its images. With a DerivativeImageCache
+ * set the images are resized into the cache and the package is left as it is.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ImageResizePool {
+
+    /**
+     * Notified from the worker threads as images finish.
+     */
+    public interface Listener {
+
+        /**
+         * @param file the image resized
+         * @param succeeded false if the image failed on every attempt
+         * @param finished number of images finished so far
+         */
+        void imageFinished(File file, boolean succeeded, int finished);
+    }
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+    private ImageResizer resizer;
+    private int threads;
+    private int retries;
+    private List<File> files = new ArrayList<File>();
+    private List<File> failed = Collections.synchronizedList(new ArrayList<File>());
+    private AtomicInteger finished = new AtomicInteger();
+    private AtomicInteger skipped = new AtomicInteger();
+    private Listener listener;
+    private DerivativeImageCache cache;
+    private int dpi;
+
+    /**
+     *
+     * @param resizer backend, called from several threads at once
+     * @param threads maximum number of images resized at the same time
+     * @param retries further attempts after an image fails
+     */
+    public ImageResizePool(ImageResizer resizer, int threads, int retries) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.resizer = resizer;
+        this.threads = threads;
+        this.retries = Math.max(0, retries);
+    }
+
+    /**
+     * Creates a pool configured by the imageResizeThreads (0 for one per
+     * processor) and imageResizeRetries settings.
+     * @param props application settings
+     * @return a pool using the configured backend
+     */
+    public static ImageResizePool newImageResizePool(Properties props) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int retries = 1;
+        try {
+            int n = Integer.parseInt(props.getProperty("imageResizeThreads", "0").trim());
+            if (n > 0) {
+                threads = n;
+            }
+            retries = Integer.parseInt(props.getProperty("imageResizeRetries", "1").trim());
+        } catch (NumberFormatException ex) {
+            Logger.getLogger(ImageResizePool.class.getName()).warning("Invalid image resize setting: "
+                    + ex.getMessage());
+        }
+        return new ImageResizePool(ImageResizer.newImageResizer(props), threads, retries);
+    }
+
+    /**
+     * @param listener notified as images finish, may be null
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Resizes into a derivative cache instead of in place.
+     * @param cache derivative store, null to resize in place
+     * @param dpi resolution of the page profile
+     */
+    public void setDerivativeCache(DerivativeImageCache cache, int dpi) {
+        this.cache = cache;
+        this.dpi = dpi;
+    }
+
+    /**
+     * Queues an image to be resized.
+     * @param file
+     */
+    public void add(File file) {
+        files.add(file);
+    }
+
+    /**
+     * Resizes all queued images to fit within width x height pixels and waits
+     * for them to finish.
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @return the images that failed on every attempt
+     * @throws InterruptedException if interrupted while waiting, unfinished
+     * images are cancelled
+     */
+    public List<File> run(final int width, final int height) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        int poolSize = Math.min(threads, Math.max(1, files.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize, new ResizeThreadFactory());
+        // the workers are charged to the conversion that waits for them
+        final ConversionProfile profile = ConversionProfile.getCurrent();
+        try {
+            for (final File file : files) {
+                executor.execute(new Runnable() {
+
+                    public void run() {
+                        if (profile == null) {
+                            resize(file, width, height);
+                            return;
+                        }
+                        profile.attach();
+                        ConversionProfile.begin(ConversionProfile.Stage.RESIZE);
+                        try {
+                            resize(file, width, height);
+                        } finally {
+                            ConversionProfile.end(ConversionProfile.Stage.RESIZE);
+                            profile.detach();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Resized " + finished.get() + " of " + files.size() + " images");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info(String.format("Resized %d of %d images (%d already fit, %d failed) using %d threads in %.1fs",
+                files.size() - skipped.get() - failed.size(), files.size(), skipped.get(), failed.size(), poolSize,
+                (System.currentTimeMillis() - start) / 1000.0));
+        return new ArrayList<File>(failed);
+    }
+
+    private void resize(File file, int width, int height) {
+        ConversionEvents.ImageResizeEvent event = ConversionEvents.beginImageResize();
+        // the cache does its own check
+        boolean succeeded = cache == null && fits(file, width, height);
+        if (succeeded) {
+            skipped.incrementAndGet();
+        }
+        File result = succeeded ? file : null;
+        int attempt = 0;
+        for (; attempt <= retries && !succeeded; attempt++) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (attempt > 0) {
+                logger.info("Retrying " + file.getName());
+            }
+            try {
+                if (cache != null) {
+                    result = cache.getDerivative(file, width, height, dpi);
+                    if (file.equals(result)) {
+                        skipped.incrementAndGet();
+                    }
+                    succeeded = result != null;
+                } else {
+                    succeeded = resizer.resize(file, file, width, height);
+                    result = succeeded ? file : null;
+                }
+            } catch (RuntimeException ex) {
+                // isolate the failure to this image
+                logger.severe("Error resizing " + file.getName() + ": " + ex);
+            }
+        }
+        if (!succeeded) {
+            failed.add(file);
+            logger.severe("Unable to resize " + file.getPath());
+        }
+        ConversionEvents.endImageResize(event, file, result, attempt, succeeded);
+        int n = finished.incrementAndGet();
+        if (listener != null) {
+            listener.imageFinished(file, succeeded, n);
+        }
+    }
+
+    /**
+     * @return true if the image header shows it fits, false if it does not
+     * or its size is unknown
+     */
+    private boolean fits(File file, int width, int height) {
+        try {
+            Dimension size = ImageSizeProbe.getSize(file);
+            return size != null && size.width <= width && size.height <= height;
+        } catch (IOException ex) {
+            // left to the resizer to report
+            return false;
+        }
+    }
+
+    /**
+     * @return number of images skipped in the last run as they already fit
+     */
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+
+    private static class ResizeThreadFactory implements ThreadFactory {
+
+        private AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "nimas2pdf-resize-" + count.incrementAndGet());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * Shrinks images to fit a bounding box, keeping their aspect ratio, the
+ * same as ImageMagick's <code>-resize WxH&gt;</code>. Images that already
+ * fit are left as they are.
+ *
+ * @author Gregory Buchenberger
+ */
+public abstract class ImageResizer {
+
+    /**
+     * Returns the resizer selected by the imageResizer setting: java (the
+     * default) for the in process JavaImageResizer, imagemagick for the
+     * convert program in the imagemagickdir directory, which is stopped
+     * after imageResizeTimeout seconds.
+     * @param props application settings
+     * @return the configured resizer
+     */
+    public static ImageResizer newImageResizer(Properties props) {
+        if ("imagemagick".equals(props.getProperty("imageResizer"))) {
+            long timeout = 0;
+            try {
+                timeout = Long.parseLong(props.getProperty("imageResizeTimeout", "0").trim()) * 1000;
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(ImageResizer.class.getName()).warning("Invalid imageResizeTimeout "
+                        + props.getProperty("imageResizeTimeout"));
+            }
+            return new MagickWrapper(new File(props.getProperty("imagemagickdir", ""), "convert"), timeout);
+        }
+        return new JavaImageResizer();
+    }
+
+    /**
+     * Shrinks an image to fit within width x height pixels, keeping its
+     * resolution. in and out may be the same file.
+     *
+     * @param in Image file for processing
+     * @param out Resulting image file
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @return true on success
+     */
+    public boolean resize(File in, File out, int width, int height) {
+        return resize(in, out, width, height, 0);
+    }
+
+    /**
+     * Shrinks an image to fit within width x height pixels. in and out may
+     * be the same file.
+     *
+     * @param in Image file for processing
+     * @param out Resulting image file
+     * @param width Width in pixels
+     * @param height Height in pixels
+     * @param resolution pixels per inch recorded in the result, which is
+     * written even if the image fits; 0 keeps the resolution of the image
+     * @return true on success
+     */
+    public abstract boolean resize(File in, File out, int width, int height, double resolution);
+}
@@ -0,0 +1,122 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Dimension;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the pixel dimensions of PNG, JPEG and GIF images from their headers
+ * alone: the PNG IHDR chunk, the JPEG start of frame segment and the GIF
+ * logical screen descriptor. No image data is decoded.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ImageSizeProbe {
+
+    private ImageSizeProbe() {
+    }
+
+    /**
+     * @param file image file
+     * @return width and height in pixels, null if the format is not
+     * recognized or the header is damaged
+     * @throws IOException if the file cannot be read
+     */
+    public static Dimension getSize(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+        try {
+            int b0 = in.readUnsignedByte();
+            int b1 = in.readUnsignedByte();
+            if (b0 == 0x89 && b1 == 'P') {
+                return getPNGSize(in);
+            } else if (b0 == 0xff && b1 == 0xd8) {
+                return getJPEGSize(in);
+            } else if (b0 == 'G' && b1 == 'I') {
+                return getGIFSize(in);
+            }
+            return null;
+        } catch (EOFException ex) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static Dimension getPNGSize(DataInputStream in) throws IOException {
+        // rest of the signature, then the length and type of the IHDR chunk
+        in.skipBytes(6);
+        in.readInt();
+        if (in.readInt() != 0x49484452) {
+            return null;
+        }
+        return new Dimension(in.readInt(), in.readInt());
+    }
+
+    private static Dimension getJPEGSize(DataInputStream in) throws IOException {
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xff) {
+                return null;
+            }
+            marker = in.readUnsignedByte();
+            while (marker == 0xff) {
+                // fill bytes
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // no length follows TEM and RST markers
+                continue;
+            }
+            int length = in.readUnsignedShort();
+            // SOF0 to SOF15, except DHT, JPG and DAC
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                in.readUnsignedByte();
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                return new Dimension(width, height);
+            }
+            if (marker == 0xda || marker == 0xd9 || length < 2) {
+                // image data or end of image before any frame header
+                return null;
+            }
+            skipFully(in, length - 2);
+        }
+    }
+
+    private static Dimension getGIFSize(DataInputStream in) throws IOException {
+        // rest of the GIF87a/GIF89a signature
+        if (in.readUnsignedByte() != 'F') {
+            return null;
+        }
+        in.skipBytes(3);
+        int width = in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+        int height = in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+        return new Dimension(width, height);
+    }
+
+    private static void skipFully(DataInputStream in, int n) throws IOException {
+        while (n > 0) {
+            int skipped = in.skipBytes(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide index of package images by content hash.
+ * <p>
+ * Series titles and new editions share most of their figures. With
+ * imageDeduplication set, ImageURIFilter hands FOP the first file seen with
+ * the same contents, so FOP's image cache, which is keyed by URI, decodes an
+ * image shared by the packages of a batch once. The derivative image cache
+ * names its files after the same hash, so a shared image is resized once
+ * too. Both are counted for getStatistics.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ImageStore {
+
+    private static final ImageStore store = new ImageStore();
+    private Map<String, SourceHash> hashes = new ConcurrentHashMap<String, SourceHash>();
+    private Map<String, File> files = new ConcurrentHashMap<String, File>();
+    private AtomicInteger images = new AtomicInteger();
+    private AtomicInteger duplicates = new AtomicInteger();
+    private AtomicLong duplicateBytes = new AtomicLong();
+    private AtomicInteger resizesSaved = new AtomicInteger();
+    private AtomicLong resizeBytesSaved = new AtomicLong();
+
+    private ImageStore() {
+    }
+
+    /**
+     * @return the store shared by all conversions
+     */
+    public static ImageStore getImageStore() {
+        return store;
+    }
+
+    /**
+     * @param props application settings
+     * @return true if FOP is handed one file per distinct image, see the
+     * imageDeduplication setting
+     */
+    public static boolean isEnabled(Properties props) {
+        return Boolean.parseBoolean(props.getProperty("imageDeduplication"));
+    }
+
+    /**
+     * @param file image file
+     * @return hex SHA-1 of the file contents, remembered for as long as its
+     * size and modification time stay the same
+     * @throws IOException if the file cannot be read
+     */
+    public String getHash(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        SourceHash known = hashes.get(path);
+        if (known != null && known.length == file.length() && known.modified == file.lastModified()) {
+            return known.hash;
+        }
+        SourceHash sourceHash = new SourceHash();
+        sourceHash.length = file.length();
+        sourceHash.modified = file.lastModified();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        sourceHash.hash = ChapterDigester.toHex(digest.digest());
+        hashes.put(path, sourceHash);
+        return sourceHash.hash;
+    }
+
+    /**
+     * Returns the first file seen with the same contents as the given one.
+     * @param file image file
+     * @return the file to load in its place, file itself if it is the first
+     * @throws IOException if the file cannot be read
+     */
+    public File getCanonical(File file) throws IOException {
+        String hash = getHash(file);
+        images.incrementAndGet();
+        File canonical = files.get(hash);
+        // the first one may have changed since
+        if (canonical == null || !canonical.isFile() || !getHash(canonical).equals(hash)) {
+            files.put(hash, file);
+            return file;
+        }
+        if (!canonical.equals(file)) {
+            duplicates.incrementAndGet();
+            duplicateBytes.addAndGet(file.length());
+        }
+        return canonical;
+    }
+
+    /**
+     * Counts a derivative found on disk instead of being resized again.
+     * @param source image the derivative was made from
+     */
+    void resizeSaved(File source) {
+        resizesSaved.incrementAndGet();
+        resizeBytesSaved.addAndGet(source.length());
+    }
+
+    /**
+     * @return one line on the work saved since the start of the process
+     */
+    public String getStatistics() {
+        return String.format("Image store: %d image references, %d duplicates (%.1f MB) loaded once, "
+                + "%d resizes (%.1f MB of images) reused", images.get(), duplicates.get(),
+                duplicateBytes.get() / (1024.0 * 1024), resizesSaved.get(), resizeBytesSaved.get() / (1024.0 * 1024));
+    }
+
+    private static class SourceHash {
+
+        long length;
+        long modified;
+        String hash;
+    }
+}
@@ -0,0 +1,106 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.logging.Logger;
+import org.apache.fop.datatypes.URISpecification;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Sits in front of FOP and makes the src of every fo:external-graphic an
+ * absolute URI.
+ * <p>
+ * FOP's image cache belongs to the shared FopFactory and is keyed by the src
+ * as written in the FO, so without this two packages with an img1.png of
+ * their own would get each other's image. With an ImageStore set, identical
+ * local images are handed to FOP as one file.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ImageURIFilter extends XMLFilterImpl {
+
+    protected static final String FO_NAMESPACE = "http://www.w3.org/1999/XSL/Format";
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+    private URI baseURI;
+    private ImageStore store;
+
+    /**
+     *
+     * @param handler FOP's handler
+     * @param baseURI URI relative image references resolve against
+     */
+    public ImageURIFilter(ContentHandler handler, String baseURI) {
+        setContentHandler(handler);
+        this.baseURI = URI.create(baseURI);
+    }
+
+    /**
+     * @param store index local images are looked up in, null to leave them
+     * as they are
+     */
+    public void setImageStore(ImageStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        int index = atts.getIndex("", "src");
+        if (index >= 0 && FO_NAMESPACE.equals(uri) && localName.equals("external-graphic")) {
+            AttributesImpl resolved = new AttributesImpl(atts);
+            resolved.setValue(index, resolve(URISpecification.getURL(atts.getValue(index))));
+            atts = resolved;
+        }
+        super.startElement(uri, localName, qName, atts);
+    }
+
+    /**
+     * @param src image reference without url()
+     * @return the absolute URI of the image
+     */
+    protected String resolve(String src) {
+        URI uri;
+        try {
+            uri = baseURI.resolve(new URI(src));
+        } catch (URISyntaxException ex) {
+            // a plain file name, e.g. with spaces
+            try {
+                uri = baseURI.resolve(new URI(null, null, src, null));
+            } catch (URISyntaxException ex2) {
+                // left to FOP to resolve or report
+                logger.fine("Not a URI: " + src);
+                return src;
+            }
+        }
+        if (store != null && "file".equals(uri.getScheme())) {
+            try {
+                File file = new File(uri);
+                if (file.isFile()) {
+                    return store.getCanonical(file).toURI().toString();
+                }
+            } catch (IllegalArgumentException ex) {
+                // not a plain file path
+            } catch (IOException ex) {
+                logger.fine("Not deduplicated: " + ex.getMessage());
+            }
+        }
+        return uri.toString();
+    }
+}
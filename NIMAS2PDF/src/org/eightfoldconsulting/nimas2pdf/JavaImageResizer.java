@@ -0,0 +1,237 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Resizes images in process with Image I/O instead of starting an
+ * ImageMagick process per image.
+ * <p>
+ * Large images are decoded with source subsampling to no less than twice the
+ * target size, so a huge scan never has to fit into the heap at full
+ * resolution, and then scaled down with bilinear interpolation. The image is
+ * written in its original format, keeping its resolution so that it prints at
+ * the same size as ImageMagick's result would.
+ *
+ * @author Gregory Buchenberger
+ */
+public class JavaImageResizer extends ImageResizer {
+
+    private Logger logger = Logger.getLogger(this.getClass().getName());
+
+    @Override
+    public boolean resize(File in, File out, int width, int height, double resolution) {
+        try {
+            return resizeImage(in, out, width, height, resolution);
+        } catch (IOException ex) {
+            logger.severe("Error resizing " + in.getName() + ": " + ex.getMessage());
+            return false;
+        }
+    }
+
+    private boolean resizeImage(File in, File out, int width, int height, double resolution) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(in);
+        if (iis == null) {
+            throw new IOException("Unable to read " + in.getPath());
+        }
+        ImageReader reader = null;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format");
+            }
+            reader = readers.next();
+            reader.setInput(iis, true, false);
+            int sourceWidth = reader.getWidth(0);
+            int sourceHeight = reader.getHeight(0);
+            double scale = Math.min((double) width / sourceWidth, (double) height / sourceHeight);
+            if (scale >= 1.0 && resolution <= 0) {
+                // only shrink, like ImageMagick's '>' flag
+                if (!in.equals(out)) {
+                    FileUtils.copyFile(in, out);
+                }
+                return true;
+            }
+            scale = Math.min(scale, 1.0);
+            int targetWidth = Math.max(1, (int) Math.round(sourceWidth * scale));
+            int targetHeight = Math.max(1, (int) Math.round(sourceHeight * scale));
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = Math.max(1, Math.min(sourceWidth / (2 * targetWidth), sourceHeight / (2 * targetHeight)));
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            BufferedImage source = reader.read(0, param);
+            IIOMetadata metadata = reader.getImageMetadata(0);
+            BufferedImage target = scale(source, targetWidth, targetHeight);
+            if (resolution <= 0) {
+                resolution = getResolution(metadata);
+            }
+            write(target, reader.getFormatName(), resolution, out);
+            logger.fine("Resized " + in.getName() + " from " + sourceWidth + "x" + sourceHeight + " to "
+                    + targetWidth + "x" + targetHeight);
+            return true;
+        } finally {
+            if (reader != null) {
+                reader.dispose();
+            }
+            iis.close();
+        }
+    }
+
+    private BufferedImage scale(BufferedImage source, int width, int height) {
+        int type;
+        if (source.getColorModel().hasAlpha()) {
+            type = BufferedImage.TYPE_INT_ARGB;
+        } else if (source.getColorModel().getNumComponents() == 1) {
+            type = BufferedImage.TYPE_BYTE_GRAY;
+        } else {
+            type = BufferedImage.TYPE_INT_RGB;
+        }
+        BufferedImage image = source;
+        // halve first, a single bilinear step skips pixels beyond 2:1
+        while (image.getWidth() / 2 >= width && image.getHeight() / 2 >= height) {
+            image = draw(image, image.getWidth() / 2, image.getHeight() / 2, type);
+        }
+        return draw(image, width, height, type);
+    }
+
+    private BufferedImage draw(BufferedImage source, int width, int height, int type) {
+        BufferedImage target = new BufferedImage(width, height, type);
+        Graphics2D g = target.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            g.dispose();
+        }
+        return target;
+    }
+
+    /**
+     * @return pixels per inch read from the standard metadata, 0 if the image
+     * has no resolution
+     */
+    private double getResolution(IIOMetadata metadata) {
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+            return 0;
+        }
+        Node root = metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeName().equals("Dimension")) {
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    if (child.getNodeName().equals("HorizontalPixelSize")) {
+                        // millimetres per pixel
+                        float pixelSize = Float.parseFloat(((Element) child).getAttribute("value"));
+                        return pixelSize > 0 ? 25.4 / pixelSize : 0;
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Records the resolution in the native metadata of PNG and JPEG images,
+     * the writers get the pixel size of the standard metadata wrong.
+     */
+    private void setResolution(IIOMetadata metadata, String formatName, double resolution)
+            throws IIOInvalidTreeException {
+        if (formatName.equalsIgnoreCase("png")) {
+            String nativeFormat = "javax_imageio_png_1.0";
+            IIOMetadataNode pHYs = new IIOMetadataNode("pHYs");
+            String pixelsPerMeter = String.valueOf(Math.round(resolution / 0.0254));
+            pHYs.setAttribute("pixelsPerUnitXAxis", pixelsPerMeter);
+            pHYs.setAttribute("pixelsPerUnitYAxis", pixelsPerMeter);
+            pHYs.setAttribute("unitSpecifier", "meter");
+            IIOMetadataNode root = new IIOMetadataNode(nativeFormat);
+            root.appendChild(pHYs);
+            metadata.mergeTree(nativeFormat, root);
+        } else if (formatName.equalsIgnoreCase("jpeg")) {
+            String nativeFormat = "javax_imageio_jpeg_image_1.0";
+            Node root = metadata.getAsTree(nativeFormat);
+            NodeList nodes = ((Element) root).getElementsByTagName("app0JFIF");
+            if (nodes.getLength() > 0) {
+                Element jfif = (Element) nodes.item(0);
+                String density = String.valueOf(Math.round(resolution));
+                jfif.setAttribute("resUnits", "1");
+                jfif.setAttribute("Xdensity", density);
+                jfif.setAttribute("Ydensity", density);
+                metadata.setFromTree(nativeFormat, root);
+            }
+        }
+    }
+
+    private void write(BufferedImage image, String formatName, double resolution, File out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer for " + formatName);
+        }
+        ImageWriter writer = writers.next();
+        // written next to the result first, in and out may be the same file
+        File partFile = new File(out.getAbsoluteFile().getParentFile(), out.getName() + ".part");
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed() && formatName.equalsIgnoreCase("jpeg")) {
+                // ImageMagick is run with -quality 100
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(1.0f);
+            }
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+            if (resolution > 0 && metadata != null && !metadata.isReadOnly()) {
+                try {
+                    setResolution(metadata, formatName, resolution);
+                } catch (IIOInvalidTreeException ex) {
+                    logger.fine("Resolution not kept: " + ex.getMessage());
+                }
+            }
+            partFile.delete();
+            ImageOutputStream ios = ImageIO.createImageOutputStream(partFile);
+            try {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, metadata), param);
+            } finally {
+                ios.close();
+            }
+            out.delete();
+            if (!partFile.renameTo(out)) {
+                throw new IOException("Unable to write " + out.getPath());
+            }
+        } finally {
+            writer.dispose();
+            partFile.delete();
+        }
+    }
+}
@@ -14,24 +14,47 @@ package org.eightfoldconsulting.nimas2pdf;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Locale;
 import java.util.logging.Logger;
 
 /**
+ * Resizes images with ImageMagick's convert program, used when the
+ * imageResizer setting is imagemagick.
+ * <p>
+ * The output of convert is drained while it runs so that it cannot block on
+ * a full pipe, and a process running longer than the timeout is destroyed.
+ * Instances may be used by several threads at once.
  *
  * @author Gregory Buchenberger
  */
-public class MagickWrapper {
+public class MagickWrapper extends ImageResizer {
     private Logger logger = Logger.getLogger(this.getClass().getName());
+    // output kept for the log when convert fails
+    private static final int MAX_OUTPUT = 4096;
 
-    private static File convertFile;
+    private File convertFile;
+    private long timeoutMillis;
 
     /**
      *
      * @param convertfile
      */
     public MagickWrapper(File convertfile) {
-        MagickWrapper.convertFile = convertfile;
+        this(convertfile, 0);
+    }
+
+    /**
+     *
+     * @param convertfile
+     * @param timeoutMillis time a single conversion may take, 0 for no limit
+     */
+    public MagickWrapper(File convertfile, long timeoutMillis) {
+        this.convertFile = convertfile;
+        this.timeoutMillis = timeoutMillis;
     }
 
     /**
@@ -43,9 +66,11 @@ public class MagickWrapper {
      * @param out Resulting image file
      * @param width Width in pixels
      * @param height Height in pixels
+     * @param resolution pixels per inch, 0 to keep the resolution of the image
      * @return Description of the Return Value
      */
-    public boolean resize(File in, File out, int width, int height) {
+    @Override
+    public boolean resize(File in, File out, int width, int height, double resolution) {
 
         ArrayList<String> command = new ArrayList<String>(10);
         try {
@@ -57,8 +82,12 @@ public class MagickWrapper {
         command.add(in.getAbsolutePath());
         command.add("-resize");
         command.add(width + "x" + height + ">");
-        //command.add("-density");
-        //command.add("72");
+        if (resolution > 0) {
+            command.add("-units");
+            command.add("PixelsPerInch");
+            command.add("-density");
+            command.add(String.format(Locale.US, "%.2f", resolution));
+        }
         command.add("-quality");
         command.add("100");
         command.add(out.getAbsolutePath());
@@ -68,6 +97,8 @@ public class MagickWrapper {
     /**
      * Tries to exec the command, waits for it to finsih, logs errors if exit
      * status is nonzero, and returns true if exit status is 0 (success).
+     * The process is destroyed when it times out or the calling thread is
+     * interrupted.
      *
      * @param command Command to execute
      * @return Description of the Return Value
@@ -75,23 +106,83 @@ public class MagickWrapper {
     private boolean exec(String[] command) {
         Process proc;
         try {
-            proc = Runtime.getRuntime().exec(command);
+            proc = new ProcessBuilder(command).redirectErrorStream(true).start();
         } catch (IOException ex) {
             logger.severe(ex.getMessage());
             return false;
         }
+        OutputDrain drain = new OutputDrain(proc.getInputStream());
+        drain.start();
         int exitStatus;
-        while (true) {
-            try {
-                exitStatus = proc.waitFor();
-                break;
-            } catch (java.lang.InterruptedException ex) {
-                logger.severe(ex.getMessage());
+        try {
+            // the output ends when convert exits
+            drain.join(timeoutMillis);
+            if (drain.isAlive()) {
+                proc.destroy();
+                logger.severe("Resize command timed out after " + timeoutMillis / 1000 + "s on the file " + command[1]);
+                return false;
             }
+            exitStatus = proc.waitFor();
+        } catch (InterruptedException ex) {
+            proc.destroy();
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            closeQuietly(proc);
         }
         if (exitStatus != 0) {
-            logger.severe("Error executing resize command on the file " + command[1] + "\nExit code: " + exitStatus);
+            logger.severe("Error executing resize command on the file " + command[1] + "\nExit code: " + exitStatus
+                    + "\n" + drain.getOutput());
         }
         return (exitStatus == 0);
     }
+
+    private static void closeQuietly(Process proc) {
+        try {
+            proc.getOutputStream().close();
+            proc.getInputStream().close();
+            proc.getErrorStream().close();
+        } catch (IOException ex) {
+            // nothing left to read
+        }
+    }
+
+    /**
+     * Reads the output of a process until it ends, keeping the beginning.
+     */
+    private static class OutputDrain extends Thread {
+
+        private InputStream in;
+        private StringBuilder output = new StringBuilder();
+
+        OutputDrain(InputStream in) {
+            super("nimas2pdf-convert-output");
+            setDaemon(true);
+            this.in = in;
+        }
+
+        @Override
+        public void run() {
+            char[] buffer = new char[1024];
+            try {
+                Reader reader = new InputStreamReader(in);
+                int n;
+                while ((n = reader.read(buffer)) != -1) {
+                    synchronized (output) {
+                        if (output.length() < MAX_OUTPUT) {
+                            output.append(buffer, 0, Math.min(n, MAX_OUTPUT - output.length()));
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                // the process was destroyed
+            }
+        }
+
+        String getOutput() {
+            synchronized (output) {
+                return output.toString();
+            }
+        }
+    }
 }
@@ -12,97 +12,89 @@
 
 package org.eightfoldconsulting.nimas2pdf;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
-import javax.xml.namespace.QName;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.*;
-import javax.xml.xpath.*;
-import org.xml.sax.SAXException;
-
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.xml.sax.InputSource;
 
 /**
+ * Reads the metadata of a package file in a single streaming pass and keeps
+ * nothing but the values, so scanning thousands of packages holds no DOM.
+ * <p>
+ * Elements are matched by local name whatever their prefix, as the XPath
+ * expressions of OPFDOMReader did on a DOM built without namespaces: the
+ * first Title, Publisher and Identifier text, the Subject under
+ * /package/metadata/dc-metadata, the href of the manifest item the first
+ * spine itemref points to and the hrefs of the PNG and JPEG manifest items.
  *
  * @author Gregory Buchenberger
  */
 public class OPFReader {
-    private Logger logger = Logger.getLogger(this.getClass().getName());
-    private String title;
-    private String publisher;
-    private String identifier;
-    private String daisyXML;
-    private String subject;
-    private File opfFile;
-    private Document xmlDocument;
-    private XPath xPath;
-    private NodeList imageList;
+
+    private static final XMLInputFactory factory = newInputFactory();
+    private final String title;
+    private final String publisher;
+    private final String identifier;
+    private final String daisyXML;
+    private final String subject;
+    private final List<String> images;
 
     /**
      *
      * @param opffile
      */
     public OPFReader(File opffile) {
-        this.opfFile = opffile;
-        initObjects();
-        this.readOPF();
-    }
-
-    private void initObjects() {
+        Logger logger = Logger.getLogger(this.getClass().getName());
+        Handler handler = new Handler();
         try {
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            //dbf.setAttribute("http: // apache.org / xml / features / nonvalidating / load-external-dtd",false);
-            DocumentBuilder builder = dbf.newDocumentBuilder();
-            builder.setEntityResolver(new XMLEntityResolver());
-            xmlDocument = builder.parse(opfFile);
-            xPath = XPathFactory.newInstance().newXPath();
+            InputStream in = new BufferedInputStream(new FileInputStream(opffile), 16 * 1024);
+            try {
+                XMLStreamReader reader = factory.createXMLStreamReader(opffile.toURI().toString(), in);
+                try {
+                    handler.read(reader);
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                in.close();
+            }
         } catch (IOException ex) {
-            logger.severe("IO Exception: "+ex.getMessage());
-        } catch (SAXException ex) {
-            logger.severe("SAX Exception: "+ex.getMessage());
-        } catch (ParserConfigurationException ex) {
-            logger.severe("Parser Configuration Exception: "+ex.getMessage());
+            logger.severe("IO Exception: " + ex.getMessage());
+        } catch (XMLStreamException ex) {
+            logger.severe("XML Stream Exception: " + ex.getMessage());
         }
+        title = handler.title;
+        publisher = handler.publisher;
+        identifier = handler.identifier;
+        subject = handler.subject;
+        String href = handler.hrefs.get(handler.spineIdref);
+        daisyXML = href != null ? href : "";
+        images = Collections.unmodifiableList(handler.images);
     }
 
-    private Object eval(String expression,
-            QName returnType) {
-        try {
-            XPathExpression xPathExpression =
-                    xPath.compile(expression);
-            return xPathExpression.evaluate(xmlDocument, returnType);
-        } catch (XPathExpressionException ex) {
-            logger.severe("XPath Expression Exception: "+ex.getMessage());
-            return null;
-        }
-    }
-
-    private void readOPF() {
-        // get Title
-        String expression = "//Title/text()";
-        title = (String) eval(expression, XPathConstants.STRING);
-        // get Publisher
-        expression = "//Publisher/text()";
-        publisher = (String) eval(expression, XPathConstants.STRING);
-        // get Subject
-        expression = "/package/metadata/dc-metadata/Subject/text()";
-        subject = (String) eval(expression, XPathConstants.STRING);
-        // get Identifier
-        expression = "//Identifier[1]/text()";
-        identifier = (String) eval(expression, XPathConstants.STRING);
-        // get Daisy XML
-        expression = "//spine/itemref[1]/@idref";
-        String itemRef = (String) eval(expression, XPathConstants.STRING);
-        expression = "//manifest/item[@id='" + itemRef + "']/@href";
-        daisyXML = (String) eval(expression, XPathConstants.STRING);
-        // get image list
-        expression = "/package/manifest/item[@media-type='image/jpg']/@href|/package/manifest/item[@media-type='image/jpeg']/@href|/package/manifest/item[@media-type='image/png']/@href";
-        imageList = (NodeList) eval(expression, XPathConstants.NODESET);
+    private static XMLInputFactory newInputFactory() {
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        inputFactory.setXMLResolver(new EntityResolverAdapter());
+        return inputFactory;
     }
 
-        /**
+    /**
      * @return the title
      */
     public String getTitle() {
@@ -138,10 +130,125 @@ public class OPFReader {
     }
 
     /**
-     *
-     * @return
+     * @return hrefs of the PNG and JPEG images in the manifest, relative to
+     * the package file, in manifest order
+     */
+    public List<String> getImages() {
+        return images;
+    }
+
+    /**
+     * Collects the values while the package file streams past.
      */
-    public NodeList getImageList(){
-        return imageList;
+    private static class Handler {
+
+        String title = "";
+        String publisher = "";
+        String identifier = "";
+        String subject = "";
+        String spineIdref = "";
+        Map<String, String> hrefs = new HashMap<String, String>();
+        List<String> images = new ArrayList<String>();
+        private List<String> path = new ArrayList<String>();
+        private boolean spineSeen;
+
+        void read(XMLStreamReader reader) throws XMLStreamException {
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = getLocalName(reader.getLocalName());
+                    path.add(name);
+                    if (name.equals("item") && parentIs("manifest")) {
+                        item(reader);
+                    } else if (name.equals("itemref") && !spineSeen && parentIs("spine")) {
+                        spineIdref = getAttribute(reader, "idref");
+                        spineSeen = true;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    path.remove(path.size() - 1);
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                        || event == XMLStreamConstants.SPACE) {
+                    text(reader.getText());
+                }
+            }
+        }
+
+        private void item(XMLStreamReader reader) {
+            String id = getAttribute(reader, "id");
+            String href = getAttribute(reader, "href");
+            if (!hrefs.containsKey(id)) {
+                hrefs.put(id, href);
+            }
+            String mediaType = getAttribute(reader, "media-type");
+            if (isPath("package", "manifest", "item")
+                    && (mediaType.equals("image/jpg") || mediaType.equals("image/jpeg") || mediaType.equals("image/png"))) {
+                images.add(href);
+            }
+        }
+
+        private void text(String text) {
+            if (path.isEmpty()) {
+                return;
+            }
+            String name = path.get(path.size() - 1);
+            if (name.equals("Title") && title.length() == 0) {
+                title = text;
+            } else if (name.equals("Publisher") && publisher.length() == 0) {
+                publisher = text;
+            } else if (name.equals("Identifier") && identifier.length() == 0) {
+                identifier = text;
+            } else if (name.equals("Subject") && subject.length() == 0
+                    && isPath("package", "metadata", "dc-metadata", "Subject")) {
+                subject = text;
+            }
+        }
+
+        private boolean isPath(String... names) {
+            if (path.size() != names.length) {
+                return false;
+            }
+            for (int i = 0; i < names.length; i++) {
+                if (!path.get(i).equals(names[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean parentIs(String name) {
+            return path.size() > 1 && path.get(path.size() - 2).equals(name);
+        }
+
+        private static String getAttribute(XMLStreamReader reader, String name) {
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                if (getLocalName(reader.getAttributeLocalName(i)).equals(name)) {
+                    return reader.getAttributeValue(i);
+                }
+            }
+            return "";
+        }
+
+        private static String getLocalName(String name) {
+            return name.substring(name.indexOf(':') + 1);
+        }
+    }
+
+    /**
+     * Resolves the DTDs the package file refers to through XMLEntityResolver.
+     */
+    private static class EntityResolverAdapter implements XMLResolver {
+
+        public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace) {
+            InputSource source = new XMLEntityResolver().resolveEntity(publicID, systemID);
+            if (source == null) {
+                // left to the parser, as for the DOM reader
+                return null;
+            }
+            if (source.getByteStream() == null) {
+                // other entities are read as empty
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            return source.getByteStream();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,282 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import javax.xml.transform.TransformerConfigurationException;
+import org.apache.commons.io.FileUtils;
+import org.apache.fop.Version;
+
+/**
+ * On disk cache of conversion results, keyed by a digest of everything a
+ * conversion reads: the OPF, the DTBook or XSL-FO source, the images listed
+ * in the OPF manifest, the stylesheet and its includes, the settings passed
+ * to the stylesheet and FOP, the FOP version and its configuration.
+ * <p>
+ * Converting a package whose inputs are byte for byte the same as for an
+ * earlier conversion copies the earlier result instead. The cache is bounded
+ * in size, the least recently used results are evicted first.
+ *
+ * @author Gregory Buchenberger
+ */
+public class OutputCache {
+
+    private static Logger logger = Logger.getLogger(OutputCache.class.getName());
+    private static final Map<String, OutputCache> caches = new HashMap<String, OutputCache>();
+    private File dir;
+    private long maxBytes;
+    private int hits;
+    private int misses;
+    private AtomicInteger partCount = new AtomicInteger();
+
+    /**
+     *
+     * @param dir cache directory
+     * @param maxBytes size the cache is trimmed to after each new entry
+     */
+    public OutputCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the process wide cache configured by the outputCache settings,
+     * so that the statistics cover all conversions.
+     * @param props conversion settings, see default.properties
+     * @return the cache, null if outputCache is not enabled
+     */
+    public static OutputCache getOutputCache(Properties props) {
+        if (!Boolean.parseBoolean(props.getProperty("outputCache"))) {
+            return null;
+        }
+        String dirName = props.getProperty("outputCacheDir", "");
+        File dir = dirName.length() != 0 ? new File(dirName) : new File(ApplicationProperties.getUserDir(), "output");
+        long maxBytes = 1024L * 1024 * 1024;
+        try {
+            maxBytes = Long.parseLong(props.getProperty("outputCacheSize", "1024").trim()) * 1024 * 1024;
+        } catch (NumberFormatException ex) {
+            logger.warning("Invalid outputCacheSize " + props.getProperty("outputCacheSize"));
+        }
+        synchronized (caches) {
+            OutputCache cache = caches.get(dir.getAbsolutePath());
+            if (cache == null) {
+                cache = new OutputCache(dir, maxBytes);
+                caches.put(dir.getAbsolutePath(), cache);
+            }
+            cache.maxBytes = maxBytes;
+            return cache;
+        }
+    }
+
+    /**
+     * Computes the cache key of a conversion.
+     * @param opfFile package file
+     * @param opfReader the parsed package file
+     * @param sourceFile DTBook or XSL-FO file converted
+     * @param mode conversion performed
+     * @param xsltFile stylesheet
+     * @param props conversion settings
+     * @return hex encoded digest
+     * @throws IOException
+     * @throws TransformerConfigurationException if the stylesheet does not compile
+     */
+    public String getKey(File opfFile, OPFReader opfReader, File sourceFile, ConversionJob.Mode mode,
+            File xsltFile, Properties props) throws IOException, TransformerConfigurationException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        update(digest, "mode=" + mode);
+        update(digest, "fop=" + Version.getVersion());
+        for (String name : XMLConverter.STYLESHEET_PARAMS) {
+            update(digest, name + "=" + props.getProperty(name, ""));
+        }
+        update(digest, "pdfA=" + props.getProperty("pdfA", ""));
+        update(digest, "accessiblePDF=" + props.getProperty("accessiblePDF", ""));
+        if (DerivativeImageCache.isEnabled(props)) {
+            update(digest, "images=" + props.getProperty("imageWidth", "") + "x" + props.getProperty("imageHeight", "")
+                    + "@" + props.getProperty("imageDPI", ""));
+        }
+        update(digest, "imageDownsampleDPI=" + props.getProperty("imageDownsampleDPI", "0").trim());
+        // merged chapters differ slightly from a single pass render
+        update(digest, "chapters=" + (!props.getProperty("chapterThreads", "1").trim().equals("1")
+                || Boolean.parseBoolean(props.getProperty("incrementalRebuild"))));
+        update(digest, opfFile);
+        update(digest, sourceFile);
+        File packageDir = opfFile.getAbsoluteFile().getParentFile();
+        for (String image : opfReader.getImages()) {
+            update(digest, new File(packageDir, image));
+        }
+        if (mode != ConversionJob.Mode.FO2PDF) {
+            for (File file : TemplatesCache.getStylesheetFiles(xsltFile)) {
+                update(digest, file);
+            }
+        }
+        update(digest, new File(ApplicationProperties.getJarDirPath(), "conf/fopconf.xml"));
+        return ChapterDigester.toHex(digest.digest());
+    }
+
+    /**
+     * Copies the cached results of a conversion, counted as one hit or miss.
+     * @param key see getKey
+     * @param extensions result file extensions, e.g. pdf and fo
+     * @param resultFiles destinations, one per extension
+     * @return true if every result was cached, nothing is copied otherwise
+     * @throws IOException
+     */
+    public boolean get(String key, String[] extensions, File[] resultFiles) throws IOException {
+        synchronized (this) {
+            for (String extension : extensions) {
+                if (!new File(dir, key + "." + extension).isFile()) {
+                    misses++;
+                    return false;
+                }
+            }
+            hits++;
+            for (int i = 0; i < extensions.length; i++) {
+                File entry = new File(dir, key + "." + extensions[i]);
+                // the modification time orders the entries for eviction
+                entry.setLastModified(System.currentTimeMillis());
+                FileUtils.copyFile(entry, resultFiles[i]);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Adds a result and evicts the least recently used results beyond the
+     * size limit.
+     * @param key see getKey
+     * @param extension result file extension
+     * @param resultFile conversion result
+     * @throws IOException
+     */
+    public void put(String key, String extension, File resultFile) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create output cache " + dir.getPath());
+        }
+        File entry = new File(dir, key + "." + extension);
+        // concurrent conversions of the same package copy to files of their own
+        File partFile = new File(dir, key + "." + extension + "." + partCount.incrementAndGet() + ".part");
+        FileUtils.copyFile(resultFile, partFile);
+        synchronized (this) {
+            entry.delete();
+            if (!partFile.renameTo(entry)) {
+                partFile.delete();
+                throw new IOException("Unable to write " + entry.getPath());
+            }
+            evict();
+        }
+    }
+
+    private void evict() {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long size = 0;
+        for (File entry : entries) {
+            size += entry.length();
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File f1, File f2) {
+                long m1 = f1.lastModified();
+                long m2 = f2.lastModified();
+                return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < entries.length && size > maxBytes; i++) {
+            if (entries[i].getName().endsWith(".part")) {
+                continue;
+            }
+            size -= entries[i].length();
+            entries[i].delete();
+            logger.info("Evicted " + entries[i].getName() + " from the output cache");
+        }
+    }
+
+    /**
+     * @return number of conversions answered from the cache
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of conversions not found in the cache
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return a one line summary of the cache use
+     */
+    public synchronized String getStatistics() {
+        long size = 0;
+        int count = 0;
+        File[] entries = dir.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                size += entry.length();
+                count++;
+            }
+        }
+        int lookups = hits + misses;
+        return String.format("Output cache: %d hits, %d misses (%.0f%% hit rate), %d entries, %.1f of %d MB",
+                hits, misses, lookups == 0 ? 0.0 : hits * 100.0 / lookups, count,
+                size / (1024.0 * 1024), maxBytes / (1024 * 1024));
+    }
+
+    private static void update(MessageDigest digest, String s) {
+        try {
+            digest.update((s + "\u0000").getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void update(MessageDigest digest, File file) throws IOException {
+        update(digest, file.getName());
+        if (!file.isFile()) {
+            update(digest, "missing");
+            return;
+        }
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        update(digest, "");
+    }
+}
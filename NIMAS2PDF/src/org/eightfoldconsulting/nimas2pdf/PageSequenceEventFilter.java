@@ -0,0 +1,91 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.util.List;
+import org.apache.fop.apps.Fop;
+import org.apache.fop.apps.FormattingResults;
+import org.apache.fop.apps.PageSequenceResults;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Sits in front of FOP and records a flight recorder event, see
+ * ConversionEvents, for every page sequence FOP lays out, with the number of
+ * pages from its PageSequenceResults.
+ * <p>
+ * FOP lays out a page sequence at its end tag, or every page sequence at the
+ * end of the document for an accessible PDF.
+ *
+ * @author Gregory Buchenberger
+ */
+public class PageSequenceEventFilter extends XMLFilterImpl {
+
+    private Fop fop;
+    private int reported;
+    private int pages;
+
+    /**
+     *
+     * @param handler handler passing the events on to FOP
+     * @param fop
+     */
+    public PageSequenceEventFilter(ContentHandler handler, Fop fop) {
+        setContentHandler(handler);
+        this.fop = fop;
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (!ImageURIFilter.FO_NAMESPACE.equals(uri) || !localName.equals("page-sequence")) {
+            super.endElement(uri, localName, qName);
+            return;
+        }
+        ConversionEvents.PageSequenceEvent event = ConversionEvents.beginPageSequence();
+        super.endElement(uri, localName, qName);
+        report(event);
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        ConversionEvents.PageSequenceEvent event = ConversionEvents.beginPageSequence();
+        super.endDocument();
+        report(event);
+    }
+
+    /**
+     * Ends the event for each page sequence laid out since the last call.
+     */
+    private void report(ConversionEvents.PageSequenceEvent event) {
+        if (event == null) {
+            return;
+        }
+        FormattingResults results = fop.getResults();
+        // no list until the first page sequence is laid out
+        List<?> sequences = results != null ? results.getPageSequences() : null;
+        if (sequences == null) {
+            return;
+        }
+        for (; reported < sequences.size(); reported++) {
+            PageSequenceResults sequence = (PageSequenceResults) sequences.get(reported);
+            if (event == null) {
+                // laid out together with the previous one, the time went to the first
+                event = ConversionEvents.beginPageSequence();
+            }
+            pages += sequence.getPageCount();
+            ConversionEvents.endPageSequence(event, sequence.getID(), reported, sequence.getPageCount(), pages);
+            event = null;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Marks the stages of a conversion that show in its SAX events for the
+ * ConversionProfile of the thread.
+ * <p>
+ * Behind the parser it ends the DTD stage at the root element. In front of
+ * FOP it charges the end of each fo:page-sequence, where FOP lays it out, to
+ * LAYOUT, and fo:external-graphic and fo:instream-foreign-object, where the
+ * image filters and FOP read the image, to IMAGES. The end of the document
+ * is charged to LAYOUT as well, as FOP lays out an accessible PDF there.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ProfileFilter extends XMLFilterImpl {
+
+    private boolean parser;
+    private boolean prolog;
+
+    /**
+     *
+     * @param handler
+     * @param parser true behind the parser, false in front of FOP
+     */
+    public ProfileFilter(ContentHandler handler, boolean parser) {
+        setContentHandler(handler);
+        this.parser = parser;
+        this.prolog = parser;
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        if (parser) {
+            super.endDocument();
+            return;
+        }
+        ConversionProfile.begin(ConversionProfile.Stage.LAYOUT);
+        try {
+            super.endDocument();
+        } finally {
+            ConversionProfile.end(ConversionProfile.Stage.LAYOUT);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (prolog) {
+            prolog = false;
+            ConversionProfile.end(ConversionProfile.Stage.DTD);
+        }
+        if (ImageURIFilter.FO_NAMESPACE.equals(uri) && localName.equals("external-graphic")) {
+            ConversionProfile.begin(ConversionProfile.Stage.IMAGES);
+            try {
+                super.startElement(uri, localName, qName, atts);
+            } finally {
+                ConversionProfile.end(ConversionProfile.Stage.IMAGES);
+            }
+        } else {
+            super.startElement(uri, localName, qName, atts);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        ConversionProfile.Stage stage = null;
+        if (ImageURIFilter.FO_NAMESPACE.equals(uri)) {
+            if (localName.equals("page-sequence")) {
+                stage = ConversionProfile.Stage.LAYOUT;
+            } else if (localName.equals("instream-foreign-object")) {
+                stage = ConversionProfile.Stage.IMAGES;
+            }
+        }
+        if (stage == null) {
+            super.endElement(uri, localName, qName);
+            return;
+        }
+        ConversionProfile.begin(stage);
+        try {
+            super.endElement(uri, localName, qName);
+        } finally {
+            ConversionProfile.end(stage);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Dimension;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFException;
+
+/**
+ * Passes FOP's rendering calls on to the PDF document handler and charges
+ * the pages, from startPage to endPage, and the end of the document, where
+ * the fonts are embedded, to the PDF stage of the ConversionProfile.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ProfiledDocumentHandler extends DelegatingDocumentHandler {
+
+    /**
+     *
+     * @param handler the handler writing the PDF
+     */
+    public ProfiledDocumentHandler(IFDocumentHandler handler) {
+        super(handler);
+    }
+
+    @Override
+    public void endDocument() throws IFException {
+        ConversionProfile.begin(ConversionProfile.Stage.PDF);
+        try {
+            handler.endDocument();
+        } finally {
+            ConversionProfile.end(ConversionProfile.Stage.PDF);
+        }
+    }
+
+    @Override
+    public void startPage(int index, String name, String pageMasterName, Dimension size) throws IFException {
+        // left in endPage
+        ConversionProfile.begin(ConversionProfile.Stage.PDF);
+        boolean started = false;
+        try {
+            handler.startPage(index, name, pageMasterName, size);
+            started = true;
+        } finally {
+            if (!started) {
+                ConversionProfile.end(ConversionProfile.Stage.PDF);
+            }
+        }
+    }
+
+    @Override
+    public void endPage() throws IFException {
+        try {
+            handler.endPage();
+        } finally {
+            ConversionProfile.end(ConversionProfile.Stage.PDF);
+        }
+    }
+}
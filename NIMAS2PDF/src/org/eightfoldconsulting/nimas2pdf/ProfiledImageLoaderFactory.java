@@ -0,0 +1,159 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import org.apache.xmlgraphics.image.loader.Image;
+import org.apache.xmlgraphics.image.loader.ImageException;
+import org.apache.xmlgraphics.image.loader.ImageFlavor;
+import org.apache.xmlgraphics.image.loader.ImageInfo;
+import org.apache.xmlgraphics.image.loader.ImageSessionContext;
+import org.apache.xmlgraphics.image.loader.spi.ImageImplRegistry;
+import org.apache.xmlgraphics.image.loader.spi.ImageLoader;
+import org.apache.xmlgraphics.image.loader.spi.ImageLoaderFactory;
+import org.apache.xmlgraphics.image.loader.util.Penalty;
+import org.apache.xmlgraphics.util.Service;
+
+/**
+ * Wraps an image loader factory of FOP's image registry so that decoding an
+ * image is charged to the IMAGES stage of the ConversionProfile and recorded
+ * as a flight recorder event, see ConversionEvents. FOP decodes most images
+ * only when it renders the page showing them.
+ * <p>
+ * The registry is shared by all FopFactory instances. install registers a
+ * wrapper for every loader factory found on the class path and keeps the
+ * loaders they wrap from being chosen.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ProfiledImageLoaderFactory implements ImageLoaderFactory {
+
+    private static boolean installed;
+    private ImageLoaderFactory factory;
+
+    /**
+     *
+     * @param factory the factory to wrap
+     */
+    public ProfiledImageLoaderFactory(ImageLoaderFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Wraps the loader factories of a registry, once per process.
+     * @param registry FOP's image registry
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized void install(ImageImplRegistry registry) {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        Iterator<Object> providers = Service.providers(ImageLoaderFactory.class);
+        while (providers.hasNext()) {
+            ImageLoaderFactory factory = (ImageLoaderFactory) providers.next();
+            if (!factory.isAvailable()) {
+                continue;
+            }
+            Set<String> loaders = new HashSet<String>();
+            try {
+                for (String mime : factory.getSupportedMIMETypes()) {
+                    for (ImageFlavor flavor : factory.getSupportedFlavors(mime)) {
+                        loaders.add(factory.newImageLoader(flavor).getClass().getName());
+                    }
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(ProfiledImageLoaderFactory.class.getName()).warning(
+                        "Image loading is not profiled for " + factory.getClass().getName() + ": " + ex);
+                continue;
+            }
+            registry.registerLoaderFactory(new ProfiledImageLoaderFactory(factory));
+            for (String loader : loaders) {
+                // loaders are chosen by penalty, which is looked up by class name
+                registry.setAdditionalPenalty(loader, Penalty.INFINITE_PENALTY);
+            }
+        }
+    }
+
+    public String[] getSupportedMIMETypes() {
+        return factory.getSupportedMIMETypes();
+    }
+
+    public ImageFlavor[] getSupportedFlavors(String mime) {
+        return factory.getSupportedFlavors(mime);
+    }
+
+    public boolean isSupported(ImageInfo imageInfo) {
+        return factory.isSupported(imageInfo);
+    }
+
+    public ImageLoader newImageLoader(ImageFlavor targetFlavor) {
+        return new ProfiledImageLoader(factory.newImageLoader(targetFlavor));
+    }
+
+    // still part of the interface in xmlgraphics-commons 1.4
+    @SuppressWarnings("deprecation")
+    public int getUsagePenalty(String mime, ImageFlavor flavor) {
+        return factory.getUsagePenalty(mime, flavor);
+    }
+
+    public boolean isAvailable() {
+        return factory.isAvailable();
+    }
+
+    private static class ProfiledImageLoader implements ImageLoader {
+
+        private ImageLoader loader;
+
+        ProfiledImageLoader(ImageLoader loader) {
+            this.loader = loader;
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Image loadImage(ImageInfo info, Map hints, ImageSessionContext session)
+                throws ImageException, IOException {
+            ConversionEvents.ImageLoadEvent event = ConversionEvents.beginImageLoad();
+            ConversionProfile.begin(ConversionProfile.Stage.IMAGES);
+            try {
+                return loader.loadImage(info, hints, session);
+            } finally {
+                ConversionProfile.end(ConversionProfile.Stage.IMAGES);
+                ConversionEvents.endImageLoad(event, info, loader.getTargetFlavor());
+            }
+        }
+
+        public Image loadImage(ImageInfo info, ImageSessionContext session) throws ImageException, IOException {
+            ConversionEvents.ImageLoadEvent event = ConversionEvents.beginImageLoad();
+            ConversionProfile.begin(ConversionProfile.Stage.IMAGES);
+            try {
+                return loader.loadImage(info, session);
+            } finally {
+                ConversionProfile.end(ConversionProfile.Stage.IMAGES);
+                ConversionEvents.endImageLoad(event, info, loader.getTargetFlavor());
+            }
+        }
+
+        public ImageFlavor getTargetFlavor() {
+            return loader.getTargetFlavor();
+        }
+
+        public int getUsagePenalty() {
+            return loader.getUsagePenalty();
+        }
+    }
+}
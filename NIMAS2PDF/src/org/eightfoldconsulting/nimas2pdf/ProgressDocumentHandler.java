@@ -0,0 +1,134 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Paint;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFException;
+import org.apache.fop.render.intermediate.IFPainter;
+import org.apache.fop.traits.BorderProps;
+import org.apache.fop.traits.RuleStyle;
+import org.w3c.dom.Document;
+
+/**
+ * Passes FOP's rendering calls on to another document handler and counts
+ * the pages finished and the text drawn on them for the ConversionProgress.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ProgressDocumentHandler extends DelegatingDocumentHandler {
+
+    private ConversionProgress progress;
+
+    /**
+     *
+     * @param handler the handler writing the document
+     * @param progress
+     */
+    public ProgressDocumentHandler(IFDocumentHandler handler, ConversionProgress progress) {
+        super(handler);
+        this.progress = progress;
+    }
+
+    @Override
+    public IFPainter startPageContent() throws IFException {
+        return new ProgressPainter(handler.startPageContent(), progress);
+    }
+
+    @Override
+    public void endPage() throws IFException {
+        handler.endPage();
+        progress.pageDone();
+    }
+
+    /**
+     * Counts the text drawn on a page.
+     */
+    private static class ProgressPainter implements IFPainter {
+
+        private IFPainter painter;
+        private ConversionProgress progress;
+
+        ProgressPainter(IFPainter painter, ConversionProgress progress) {
+            this.painter = painter;
+            this.progress = progress;
+        }
+
+        public void drawText(int x, int y, int letterSpacing, int wordSpacing, int[] dx, String text)
+                throws IFException {
+            painter.drawText(x, y, letterSpacing, wordSpacing, dx, text);
+            progress.textDrawn(ConversionProgress.countText(text));
+        }
+
+        public void startViewport(AffineTransform transform, Dimension size, Rectangle clipRect)
+                throws IFException {
+            painter.startViewport(transform, size, clipRect);
+        }
+
+        public void startViewport(AffineTransform[] transforms, Dimension size, Rectangle clipRect)
+                throws IFException {
+            painter.startViewport(transforms, size, clipRect);
+        }
+
+        public void endViewport() throws IFException {
+            painter.endViewport();
+        }
+
+        public void startGroup(AffineTransform[] transforms) throws IFException {
+            painter.startGroup(transforms);
+        }
+
+        public void startGroup(AffineTransform transform) throws IFException {
+            painter.startGroup(transform);
+        }
+
+        public void endGroup() throws IFException {
+            painter.endGroup();
+        }
+
+        public void setFont(String family, String style, Integer weight, String variant, Integer size, Color color)
+                throws IFException {
+            painter.setFont(family, style, weight, variant, size, color);
+        }
+
+        public void clipRect(Rectangle rect) throws IFException {
+            painter.clipRect(rect);
+        }
+
+        public void fillRect(Rectangle rect, Paint fill) throws IFException {
+            painter.fillRect(rect, fill);
+        }
+
+        public void drawBorderRect(Rectangle rect, BorderProps before, BorderProps after, BorderProps start,
+                BorderProps end) throws IFException {
+            painter.drawBorderRect(rect, before, after, start, end);
+        }
+
+        public void drawLine(Point start, Point end, int width, Color color, RuleStyle style) throws IFException {
+            painter.drawLine(start, end, width, color, style);
+        }
+
+        public void drawImage(String uri, Rectangle rect) throws IFException {
+            painter.drawImage(uri, rect);
+        }
+
+        public void drawImage(Document doc, Rectangle rect) throws IFException {
+            painter.drawImage(doc, rect);
+        }
+    }
+}
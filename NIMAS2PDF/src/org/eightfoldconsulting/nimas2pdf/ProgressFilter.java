@@ -0,0 +1,44 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Counts the text of the source read into a ConversionProgress, behind the
+ * parser of a DTBook or in front of FOP for an XSL-FO source.
+ *
+ * @author Gregory Buchenberger
+ */
+public class ProgressFilter extends XMLFilterImpl {
+
+    private ConversionProgress progress;
+
+    /**
+     *
+     * @param handler
+     * @param progress
+     */
+    public ProgressFilter(ContentHandler handler, ConversionProgress progress) {
+        setContentHandler(handler);
+        this.progress = progress;
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        progress.textRead(ConversionProgress.countText(ch, start, length));
+        super.characters(ch, start, length);
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+
+/**
+ * Passes SAX events on to two handlers, so that one transformation can feed
+ * FOP and write the XSL-FO at the same time.
+ *
+ * @author Gregory Buchenberger
+ */
+public class TeeContentHandler implements ContentHandler {
+
+    private ContentHandler first;
+    private ContentHandler second;
+
+    /**
+     *
+     * @param first receives each event first
+     * @param second
+     */
+    public TeeContentHandler(ContentHandler first, ContentHandler second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    public void setDocumentLocator(Locator locator) {
+        first.setDocumentLocator(locator);
+        second.setDocumentLocator(locator);
+    }
+
+    public void startDocument() throws SAXException {
+        first.startDocument();
+        second.startDocument();
+    }
+
+    public void endDocument() throws SAXException {
+        first.endDocument();
+        second.endDocument();
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        first.startPrefixMapping(prefix, uri);
+        second.startPrefixMapping(prefix, uri);
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        first.endPrefixMapping(prefix);
+        second.endPrefixMapping(prefix);
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        first.startElement(uri, localName, qName, atts);
+        second.startElement(uri, localName, qName, atts);
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        first.endElement(uri, localName, qName);
+        second.endElement(uri, localName, qName);
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        first.characters(ch, start, length);
+        second.characters(ch, start, length);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        first.ignorableWhitespace(ch, start, length);
+        second.ignorableWhitespace(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        first.processingInstruction(target, data);
+        second.processingInstruction(target, data);
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        first.skippedEntity(name);
+        second.skippedEntity(name);
+    }
+}
@@ -0,0 +1,145 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * Compiled stylesheets shared between conversions.
+ * <p>
+ * dtbook2fo.xsl and its includes are parsed and compiled once; each
+ * conversion then only creates a cheap Transformer from the cached
+ * Templates. An entry is recompiled when the stylesheet or any file it
+ * includes or imports changes on disk.
+ *
+ * @author Gregory Buchenberger
+ */
+public class TemplatesCache {
+
+    private static Logger logger = Logger.getLogger(TemplatesCache.class.getName());
+    private static final Map<String, Entry> cache = new HashMap<String, Entry>();
+
+    private TemplatesCache() {
+    }
+
+    /**
+     * Returns the compiled form of a stylesheet, compiling it if it is not
+     * cached or has changed since it was compiled.
+     * @param xsltFile stylesheet
+     * @return thread safe compiled stylesheet
+     * @throws TransformerConfigurationException if the stylesheet does not compile
+     */
+    public static Templates getTemplates(File xsltFile) throws TransformerConfigurationException {
+        String key = xsltFile.getAbsolutePath();
+        synchronized (cache) {
+            Entry entry = cache.get(key);
+            if (entry == null || entry.isStale()) {
+                entry = compile(xsltFile);
+                cache.put(key, entry);
+            }
+            return entry.templates;
+        }
+    }
+
+    /**
+     * Returns the stylesheet and every file it includes or imports.
+     * @param xsltFile stylesheet
+     * @return the files the compiled stylesheet was read from
+     * @throws TransformerConfigurationException if the stylesheet does not compile
+     */
+    public static List<File> getStylesheetFiles(File xsltFile) throws TransformerConfigurationException {
+        synchronized (cache) {
+            getTemplates(xsltFile);
+            return new ArrayList<File>(cache.get(xsltFile.getAbsolutePath()).files.keySet());
+        }
+    }
+
+    /**
+     * Drops all compiled stylesheets.
+     */
+    public static void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private static Entry compile(File xsltFile) throws TransformerConfigurationException {
+        long start = System.currentTimeMillis();
+        Entry entry = new Entry();
+        entry.addFile(xsltFile.getAbsoluteFile());
+        TransformerFactory factory = TransformerFactory.newInstance();
+        factory.setURIResolver(new DependencyRecorder(entry));
+        entry.templates = factory.newTemplates(new StreamSource(xsltFile));
+        logger.info("Compiled " + xsltFile.getName() + " and " + (entry.files.size() - 1)
+                + " included stylesheets in " + (System.currentTimeMillis() - start) + " ms");
+        return entry;
+    }
+
+    private static class Entry {
+
+        private Templates templates;
+        // stylesheet files and their modification times when compiled
+        private Map<File, Long> files = new LinkedHashMap<File, Long>();
+
+        private void addFile(File file) {
+            files.put(file, file.lastModified());
+        }
+
+        private boolean isStale() {
+            for (Map.Entry<File, Long> file : files.entrySet()) {
+                if (file.getKey().lastModified() != file.getValue().longValue()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Notes every file included or imported while compiling, leaving the
+     * actual resolution to the processor.
+     */
+    private static class DependencyRecorder implements URIResolver {
+
+        private Entry entry;
+
+        DependencyRecorder(Entry entry) {
+            this.entry = entry;
+        }
+
+        public Source resolve(String href, String base) {
+            try {
+                URI uri = base != null ? new URI(base).resolve(href) : new URI(href);
+                if ("file".equals(uri.getScheme())) {
+                    entry.addFile(new File(uri));
+                }
+            } catch (Exception ex) {
+                logger.warning("Unable to track stylesheet " + href + ": " + ex.getMessage());
+            }
+            return null;
+        }
+    }
+}
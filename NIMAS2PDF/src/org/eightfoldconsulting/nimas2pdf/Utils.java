@@ -12,7 +12,16 @@
 
 package org.eightfoldconsulting.nimas2pdf;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.swing.ImageIcon;
 
 /**
@@ -28,6 +37,11 @@ public class Utils {
      *
      */
     public final static String fo = "fo";
+    /**
+     * extension appended to gzip compressed XSL-FO files
+     */
+    public final static String gz = "gz";
+    private static final int BUFFER_SIZE = 64 * 1024;
 
 
     /*
@@ -49,6 +63,72 @@ public class Utils {
         return ext;
     }
 
+    /**
+     * Finds the XSL-FO file of a package, plain or compressed.
+     * @param dir directory holding the file
+     * @param identifier package identifier
+     * @return identifier.fo, or identifier.fo.gz if only that exists or it
+     * was written last, writing one form leaves the other in place
+     */
+    public static File getFOFile(File dir, String identifier) {
+        File file = new File(dir, identifier + "." + fo);
+        File compressed = new File(dir, identifier + "." + fo + "." + gz);
+        if (!compressed.exists()) {
+            return file;
+        }
+        return !file.exists() || compressed.lastModified() > file.lastModified() ? compressed : file;
+    }
+
+    /**
+     * Opens an XSL-FO file for reading, decompressing it if it starts with
+     * the gzip signature whatever its name.
+     * @param file
+     * @return buffered stream of the uncompressed content
+     * @throws IOException
+     */
+    public static InputStream openFO(File file) throws IOException {
+        return openFO(file, null);
+    }
+
+    /**
+     * Opens an XSL-FO file, gzip compressed or not, counting the bytes read
+     * from the file.
+     * @param file
+     * @param progress fed with the bytes read, null for none
+     * @return buffered stream of the uncompressed FO
+     * @throws IOException
+     */
+    public static InputStream openFO(File file, ConversionProgress progress) throws IOException {
+        InputStream in = new FileInputStream(file);
+        if (progress != null) {
+            in = new ProgressInputStream(in, progress);
+        }
+        in = new BufferedInputStream(in, BUFFER_SIZE);
+        try {
+            in.mark(2);
+            boolean gzip = in.read() == 0x1f && in.read() == 0x8b;
+            in.reset();
+            return gzip ? new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE) : in;
+        } catch (IOException ex) {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Creates an XSL-FO file, gzip compressed if its name ends with .gz.
+     * @param file
+     * @return buffered stream
+     * @throws IOException
+     */
+    public static OutputStream createFO(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        if (gz.equals(getExtension(file))) {
+            out = new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+        return new BufferedOutputStream(out, BUFFER_SIZE);
+    }
+
     /** Returns an ImageIcon, or null if the path was invalid.
      * @param path
      * @return
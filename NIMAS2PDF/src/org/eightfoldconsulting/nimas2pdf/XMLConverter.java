@@ -15,10 +15,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.stream.StreamResult;
 
 //FOP
@@ -29,8 +38,15 @@ import org.apache.fop.apps.FopFactory;
 import org.apache.fop.apps.FormattingResults;
 import org.apache.fop.apps.MimeConstants;
 import org.apache.fop.apps.PageSequenceResults;
+import org.apache.fop.Version;
+import org.apache.fop.render.intermediate.IFContext;
+import org.apache.fop.render.intermediate.IFDocumentHandler;
+import org.apache.fop.render.intermediate.IFException;
+import org.apache.fop.render.intermediate.IFSerializer;
+import org.apache.fop.render.intermediate.IFUtil;
 
 //JAXP
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.Result;
@@ -40,6 +56,7 @@ import javax.xml.transform.stream.StreamSource;
 import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
@@ -50,82 +67,141 @@ import org.xml.sax.XMLReader;
  */
 public class XMLConverter {
 
+    /**
+     * Settings passed to the stylesheet as parameters of the same name.
+     */
+    public static final String[] STYLESHEET_PARAMS = {"baseFontFamily", "headerFontFamily",
+        "baseFontSize", "tableFontSize", "bookmarkHeaders", "bookmarkTables", "pageWidth",
+        "pageHeight", "pageOrientation", "pageSequenceMode", "pageSequenceMaxNodes"};
     private Logger logger = Logger.getLogger(this.getClass().getName());
     private File xmlFile;
     private File xmlDir;
     private File xsltFile;
+    private File fopConfig;
     private FopFactory fopFactory;
+    private Properties props;
+    private int pageCount;
+    private DerivativeImageCache derivatives;
+    private int imageWidth;
+    private int imageHeight;
+    private int imageDPI;
+    private int downsampleDPI;
+    // where downsampled images go during a conversion, see beginDownsampling
+    private DerivativeImageCache downsamples;
+    private boolean downsamplesTemporary;
+    private Boolean externalDTDNeeded;
+    private Boolean internalSubset;
+    private ConversionProgress progress;
 
     /**
      *
      * @param xmlfile
      * @param xsltfile
+     * @param props conversion settings, see default.properties
      */
-    public XMLConverter(File xmlfile, File xsltfile) {
+    public XMLConverter(File xmlfile, File xsltfile, Properties props) {
         this.xmlFile = xmlfile;
         this.xsltFile = xsltfile;
+        this.props = props;
         initFopFactory();
+        initDerivatives();
     }
 
     private void initFopFactory() {
-        try {
-            File jarFile = new File(FrameMain.class.getProtectionDomain().getCodeSource().getLocation().getPath().toString());
-            String jarDir = jarFile.getParent().toString();
-            xmlDir = xmlFile.getParentFile();
-            this.fopFactory = FopFactory.newInstance();
-            File userconfig = new File(jarDir, "conf/fopconf.xml");
-            fopFactory.setUserConfig(userconfig);
-            //deal with spaces in baseUrl
-            String baseUrl = xmlDir.toURI().toURL().toString();
-            fopFactory.setBaseURL(baseUrl);
-        } catch (Exception ex) {
-            logger.severe(ex.getMessage());
-        }
+        String jarDir = ApplicationProperties.getJarDirPath();
+        xmlDir = xmlFile.getAbsoluteFile().getParentFile();
+        // shared between conversions, see newFOUserAgent for per job settings
+        fopConfig = new File(jarDir, "conf/fopconf.xml");
+        this.fopFactory = FopFactoryCache.getFopFactory(fopConfig);
     }
 
-    private void setParams(Transformer transformer) {
-        String baseFontFamily = FrameMain.applicationProps.getProperty("baseFontFamily");
-        String headerFontFamily = FrameMain.applicationProps.getProperty("headerFontFamily");
-        String baseFontSize = FrameMain.applicationProps.getProperty("baseFontSize");
-        String tableFontSize = FrameMain.applicationProps.getProperty("tableFontSize");
-        String bookmarkHeaders = FrameMain.applicationProps.getProperty("bookmarkHeaders");
-        String bookmarkTables = FrameMain.applicationProps.getProperty("bookmarkTables");
-
-        String pageWidth = FrameMain.applicationProps.getProperty("pageWidth");
-        String pageHeight = FrameMain.applicationProps.getProperty("pageHeight");
-        String pageOrientation = FrameMain.applicationProps.getProperty("pageOrientation");
+    /**
+     * Picks the cache of the images downsampled to imageDownsampleDPI: the
+     * derivative cache with imageDerivatives, otherwise the given directory,
+     * or a temporary one removed by endDownsampling.
+     */
+    private void beginDownsampling(File dir) throws IOException {
+        if (downsampleDPI <= 0) {
+            return;
+        }
+        if (derivatives != null) {
+            downsamples = derivatives;
+            return;
+        }
+        downsamplesTemporary = dir == null;
+        if (downsamplesTemporary) {
+            dir = File.createTempFile("nimas2pdf", ".images");
+            dir.delete();
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create image cache " + dir.getPath());
+        }
+        downsamples = new DerivativeImageCache(dir, ImageResizer.newImageResizer(props));
+    }
 
-        if (baseFontFamily.length() != 0) {
-            transformer.setParameter("baseFontFamily", baseFontFamily);
+    private void endDownsampling() {
+        if (downsamples != null && downsamplesTemporary) {
+            downsamples.delete();
         }
-        if (headerFontFamily.length() != 0) {
-            transformer.setParameter("headerFontFamily", headerFontFamily);
+        downsamples = null;
+    }
+
+    private void initDerivatives() {
+        try {
+            downsampleDPI = Integer.parseInt(props.getProperty("imageDownsampleDPI", "0").trim());
+        } catch (NumberFormatException ex) {
+            logger.warning("Invalid imageDownsampleDPI " + props.getProperty("imageDownsampleDPI"));
         }
-        if (baseFontSize.length() != 0) {
-            transformer.setParameter("baseFontSize", baseFontSize);
+        if (!DerivativeImageCache.isEnabled(props)) {
+            return;
         }
-        if (tableFontSize.length() != 0) {
-            transformer.setParameter("tableFontSize", tableFontSize);
+        try {
+            imageDPI = Integer.parseInt(props.getProperty("imageDPI", "300").trim());
+            imageWidth = DerivativeImageCache.toPixels(props.getProperty("imageWidth", "9.5"), String.valueOf(imageDPI));
+            imageHeight = DerivativeImageCache.toPixels(props.getProperty("imageHeight", "5.5"), String.valueOf(imageDPI));
+            derivatives = DerivativeImageCache.getDerivativeImageCache(props);
+        } catch (NumberFormatException ex) {
+            logger.warning("Invalid image derivative setting, using the package images: " + ex.getMessage());
         }
-        if (bookmarkHeaders.length() != 0) {
-            transformer.setParameter("bookmarkHeaders", bookmarkHeaders);
+    }
+
+    /**
+     * Resizes the images of the package into the derivative cache on the
+     * image resize pool, ahead of FOP asking for them one at a time.
+     */
+    private void prepareImages(OPFReader opfReader) throws IOException {
+        if (derivatives == null) {
+            return;
         }
-        if (bookmarkTables.length() != 0) {
-            transformer.setParameter("bookmarkTables", bookmarkTables);
+        List<String> images = opfReader.getImages();
+        if (images.isEmpty()) {
+            return;
         }
-        if (pageWidth.length() != 0) {
-            transformer.setParameter("pageWidth", pageWidth);
+        ImageResizePool pool = ImageResizePool.newImageResizePool(props);
+        pool.setDerivativeCache(derivatives, imageDPI);
+        for (String image : images) {
+            pool.add(new File(xmlDir, image));
         }
-       if (pageHeight.length() != 0) {
-            transformer.setParameter("pageHeight", pageHeight);
+        try {
+            pool.run(imageWidth, imageHeight);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted resizing images");
         }
-        if (pageOrientation.length() != 0) {
-            transformer.setParameter("pageOrientation", pageOrientation);
+    }
+
+    private void setParams(Transformer transformer) {
+        for (String name : STYLESHEET_PARAMS) {
+            String value = props.getProperty(name, "");
+            if (value.length() != 0) {
+                transformer.setParameter(name, value);
+            }
         }
     }
 
     /**
-     * Method to convert NIMAS XML to XSL-FO using Xalan
+     * Method to convert NIMAS XML to XSL-FO using Xalan, gzip compressed if
+     * the result file name ends with .gz
      * @param resultFile
      * @throws IOException
      * @throws SAXException
@@ -136,50 +212,45 @@ public class XMLConverter {
 
         //debug message
         logger.info("Transforming " + xmlFile.getName() + " to XSL-FO...");
+        if (progress != null) {
+            progress.setPaginated(false);
+        }
         logger.info("Using " + xsltFile.getName() + " for tranformation...");
 
         //Setup output
-        OutputStream out = new java.io.FileOutputStream(resultFile);
-        out = new java.io.BufferedOutputStream(out);
+        OutputStream out = Utils.createFO(resultFile);
+        XMLReader reader = null;
         try {
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            spf.setValidating(false);
-            spf.setNamespaceAware(true);
-            SAXParser parser = spf.newSAXParser();
-            XMLReader reader = parser.getXMLReader();
-            reader.setEntityResolver(new XMLEntityResolver());
+            reader = getXMLReader();
             // Setup JAXP using identity transformer
-            SAXTransformerFactory factory = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
+            SAXTransformerFactory factory = XMLParserPool.getTransformerFactory();
             //Setup XSLT
-            Source xslt = new StreamSource(xsltFile);
+            Templates xslt = TemplatesCache.getTemplates(xsltFile);
             TransformerHandler handler = factory.newTransformerHandler(xslt);
             Transformer transformer = handler.getTransformer();
-            reader.setContentHandler(handler);
             //Set stylesheet parameters
             setParams(transformer);
-            //Setup input for XSLT transformation
-            InputStream in = new FileInputStream(xmlFile);
-            InputSource src = new InputSource(in);
 
             Result res = new StreamResult(out);
             handler.setResult(res);
 
             // Start XSLT transformation and FOP processing by invoking the XML parser
-            reader.parse(src);
-        } catch (IOException ex) {
-            logger.severe("IO Exception" + ex.getMessage());
-        } catch (SAXException ex) {
-            logger.severe("SAX Exception" + ex.getMessage());
-        } catch (Exception ex) {
-            logger.severe(ex.getMessage());
+            ConversionEvents.XSLTEvent event = ConversionEvents.beginXSLT();
+            try {
+                parse(reader, handler, true);
+            } finally {
+                ConversionEvents.endXSLT(event, xmlFile, -1, "fo");
+            }
         } finally {
             logger.info("Transformation complete.");
+            XMLParserPool.release(reader);
             out.close();
         }
     }
 
     /**
-     * Method to convert XSL-FO to a PDF file using FOP
+     * Method to convert XSL-FO to a PDF file using FOP, the FO may be gzip
+     * compressed
      * @param opfReader
      * @param resultfile
      * @throws IOException
@@ -190,26 +261,16 @@ public class XMLConverter {
             throws IOException, FOPException {
 
         OutputStream out = null;
+        InputStream in = null;
+        prepareImages(opfReader);
+        beginDownsampling(null);
 
         try {
             //configure user agent
-            FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
-            //PDF/A-1b
-            Boolean isPDFA = Boolean.parseBoolean(FrameMain.applicationProps.getProperty("pdfA"));
-            if (isPDFA) {
-                foUserAgent.getRendererOptions().put("pdf-a-mode", "PDF/A-1b");
-            }
-            //Accessible PDF
-            Boolean isAccessiblePDF = Boolean.parseBoolean(FrameMain.applicationProps.getProperty("accessiblePDF"));
-            if (isAccessiblePDF) {
-                foUserAgent.setAccessibility(true);
-            }
-            foUserAgent.setTitle(opfReader.getTitle());
-            foUserAgent.setSubject(opfReader.getSubject());
-            foUserAgent.setKeywords(opfReader.getIdentifier());
-            foUserAgent.setProducer("NIMAS2PDF");
+            FOUserAgent foUserAgent = newFOUserAgent(opfReader);
+            overrideDocumentHandler(foUserAgent);
 
-            File foFile = new File(xmlDir, opfReader.getIdentifier() + ".fo");
+            File foFile = Utils.getFOFile(xmlDir, opfReader.getIdentifier());
             //debug message
             logger.info("Transforming " + foFile.getName() + " to PDF.");
             logger.info("Using " + xsltFile.getName() + " for tranformation.");
@@ -222,38 +283,55 @@ public class XMLConverter {
 
 
             // Setup JAXP using identity transformer
-            TransformerFactory factory = TransformerFactory.newInstance();
+            TransformerFactory factory = XMLParserPool.getTransformerFactory();
             Transformer transformer = factory.newTransformer(); // identity transformer
 
 
-            // Setup input stream
-            Source src = new StreamSource(foFile);
+            // Setup input stream, relative URLs resolve against the FO file
+            if (progress != null) {
+                progress.addBytesToRead(foFile.length());
+            }
+            in = Utils.openFO(foFile, progress);
+            Source src = new StreamSource(in, foFile.toURI().toString());
 
             // Resulting SAX events (the generated FO) must be piped through to FOP
-            Result res = new SAXResult(fop.getDefaultHandler());
+            ContentHandler handler = newFOPHandler(fop);
+            if (progress != null) {
+                handler = new ProgressFilter(handler, progress);
+            }
+            Result res = new SAXResult(handler);
 
             // Start XSLT transformation and FOP processing
-            transformer.transform(src, res);
+            ConversionEvents.XSLTEvent event = ConversionEvents.beginXSLT();
+            ConversionProfile.begin(ConversionProfile.Stage.XSLT);
+            try {
+                transformer.transform(src, res);
+            } finally {
+                ConversionProfile.end(ConversionProfile.Stage.XSLT);
+                ConversionEvents.endXSLT(event, foFile, -1, "pdf");
+            }
 
             // Result processing
-            FormattingResults foResults = fop.getResults();
-            java.util.List pageSequences = foResults.getPageSequences();
-            for (java.util.Iterator it = pageSequences.iterator(); it.hasNext();) {
-                PageSequenceResults pageSequenceResults = (PageSequenceResults) it.next();
-                logger.info("PageSequence " + (String.valueOf(pageSequenceResults.getID()).length() > 0
-                        ? pageSequenceResults.getID() : "<no id>") + " generated " + pageSequenceResults.getPageCount() + " pages.");
-            }
-            logger.info("Generated " + foResults.getPageCount() + " pages in total.");
+            logResults(fop.getResults());
 
-        } catch (Exception ex) {
-            logger.severe(ex.getMessage());
+        } catch (TransformerException ex) {
+            throw new FOPException(ex);
         } finally {
-            out.close();
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+            endDownsampling();
         }
     }
 
     /**
-     * Method to convert NIMAS XML to a PDF file using Xalan and FOP
+     * Method to convert NIMAS XML to a PDF file using Xalan and FOP.
+     * With chapterThreads set above 1 the chapters are rendered concurrently,
+     * with incrementalRebuild only the chapters changed since the last
+     * conversion are rendered, see convertChapters2PDF.
      * @param opfReader
      * @param resultfile 
      * @throws IOException
@@ -264,89 +342,574 @@ public class XMLConverter {
     @SuppressWarnings("unchecked")
     public void convertXML2PDF(OPFReader opfReader, File resultfile)
             throws IOException, SAXException, TransformerException, FOPException {
+        prepareImages(opfReader);
+        int chapterThreads = getChapterThreads();
+        boolean incremental = Boolean.parseBoolean(props.getProperty("incrementalRebuild"));
+        if (chapterThreads > 1 || incremental) {
+            if (Boolean.parseBoolean(props.getProperty("accessiblePDF"))) {
+                // the structure trees of separately rendered chapters cannot be merged
+                logger.info("Accessible PDF is rendered in a single pass.");
+            } else {
+                ChapterSplitter splitter = new ChapterSplitter();
+                ChapterDigester chapters = digestChapters(splitter);
+                if (chapters.getCount() > 1) {
+                    File cacheDir = incremental ? getChapterCacheDir(opfReader) : null;
+                    // the cached chapters refer to the downsampled images
+                    beginDownsampling(cacheDir != null ? new File(cacheDir, "images") : null);
+                    try {
+                        convertChapters2PDF(opfReader, resultfile, splitter, chapters, chapterThreads, cacheDir);
+                    } finally {
+                        endDownsampling();
+                    }
+                    return;
+                }
+            }
+        }
+        beginDownsampling(null);
+        try {
+            renderXML2PDF(opfReader, resultfile, null);
+        } finally {
+            endDownsampling();
+        }
+    }
+
+    /**
+     * Method to convert NIMAS XML to both XSL-FO and PDF files in a single
+     * transformation, the generated FO is written while FOP renders it.
+     * @param opfReader
+     * @param foFile
+     * @param resultfile
+     * @throws IOException
+     * @throws SAXException
+     * @throws TransformerException
+     * @throws FOPException
+     */
+    public void convertXML2FOPDF(OPFReader opfReader, File foFile, File resultfile)
+            throws IOException, SAXException, TransformerException, FOPException {
+        if (getChapterThreads() > 1 || Boolean.parseBoolean(props.getProperty("incrementalRebuild"))) {
+            // chapters rendered separately never form one FO document
+            logger.info("XSL-FO and PDF are rendered in a single pass.");
+        }
+        prepareImages(opfReader);
+        beginDownsampling(null);
+        try {
+            renderXML2PDF(opfReader, resultfile, foFile);
+        } finally {
+            endDownsampling();
+        }
+    }
+
+    private void renderXML2PDF(OPFReader opfReader, File resultfile, File foFile)
+            throws IOException, SAXException, TransformerException, FOPException {
+        //create user agent
+        FOUserAgent foUserAgent = newFOUserAgent(opfReader);
+        overrideDocumentHandler(foUserAgent);
+        //debug message
+        logger.info("Transforming " + xmlFile.getName() + (foFile != null ? " to XSL-FO and PDF." : " to PDF."));
+        logger.info("Using " + xsltFile.getName() + " for tranformation.");
+
+        // setup output based on parameter
+        OutputStream out = new java.io.FileOutputStream(resultfile);
+        out = new java.io.BufferedOutputStream(out);
+        OutputStream foOut = null;
+        XMLReader reader = null;
+        try {
+            reader = getXMLReader();
+            // Construct fop with desired output format
+            Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, out);
+
+            // Setup JAXP using identity transformer
+            SAXTransformerFactory factory = XMLParserPool.getTransformerFactory();
+
+
+            // Setup XSLT
+            Templates xslt = TemplatesCache.getTemplates(xsltFile);
+            TransformerHandler handler = factory.newTransformerHandler(xslt);
+            Transformer transformer = handler.getTransformer();
+            //Set stylesheet parameters
+            setParams(transformer);
+
+            // Resulting SAX events (the generated FO) must be piped through to FOP
+            ContentHandler fopHandler = newFOPHandler(fop);
+            Result res = new SAXResult(fopHandler);
+            if (foFile != null) {
+                // and also serialized to the FO file
+                foOut = Utils.createFO(foFile);
+                TransformerHandler serializer = factory.newTransformerHandler();
+                serializer.getTransformer().setOutputProperties(xslt.getOutputProperties());
+                serializer.setResult(new StreamResult(foOut));
+                // the FO keeps the image references as generated
+                res = new SAXResult(new TeeContentHandler(fopHandler, serializer));
+            }
+            handler.setResult(res);
+            //handler.getTransformer().setErrorListener(new DefaultErrorListener());
+
+            // Start XSLT transformation and FOP processing by invoking the XML parser
+            ConversionEvents.XSLTEvent event = ConversionEvents.beginXSLT();
+            try {
+                parse(reader, handler, true);
+            } finally {
+                ConversionEvents.endXSLT(event, xmlFile, -1, foFile != null ? "fo+pdf" : "pdf");
+            }
+
+            // Result processing
+            logResults(fop.getResults());
+        } finally {
+            XMLParserPool.release(reader);
+            if (foOut != null) {
+                foOut.close();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Converts NIMAS XML to a PDF file rendering each chapter (page sequence
+     * in chapter mode) on its own thread to FOP's intermediate format. The
+     * chapters are then merged into the PDF in document order. Each chapter
+     * starts on page 1, a right page, of its render, which holds in the book
+     * too as chapter mode ends every chapter on an even page.
+     * <p>
+     * With a cache directory the intermediate format of each chapter is kept
+     * there, named by its content hash, and reused as long as the hash does
+     * not change. Chapters no longer part of the book are removed.
+     */
+    private void convertChapters2PDF(final OPFReader opfReader, File resultfile, final ChapterSplitter splitter,
+            ChapterDigester digester, int threads, File cacheDir)
+            throws IOException, SAXException, TransformerException, FOPException {
+        List<String> digests = digester.getDigests(getFingerprint(opfReader));
+        final Map<String, Integer> linkTargets = digester.getLinkTargets();
+        int chapters = digests.size();
+        logger.info("Transforming " + xmlFile.getName() + " to PDF, " + chapters + " chapters on "
+                + threads + " threads.");
+        logger.info("Using " + xsltFile.getName() + " for tranformation.");
+        List<File> chapterFiles = new ArrayList<File>();
+        final ConversionProfile profile = ConversionProfile.getCurrent();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chapters)));
         OutputStream out = null;
+        boolean merged = false;
         try {
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            spf.setValidating(false);
-            spf.setNamespaceAware(true);
-            SAXParser parser = spf.newSAXParser();
-            XMLReader reader = parser.getXMLReader();
-            reader.setEntityResolver(new XMLEntityResolver());
-            //create user agent
-            FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
-            //configure user agent
-            //PDF/A-1b
-            Boolean isPDFa = Boolean.parseBoolean(FrameMain.applicationProps.getProperty("pdfA"));
-            if (isPDFa) {
-                foUserAgent.getRendererOptions().put("pdf-a-mode", "PDF/A-1b");
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            List<Integer> rendered = new ArrayList<Integer>();
+            for (int i = 1; i <= chapters; i++) {
+                final int chapterIndex = i;
+                final File chapterFile;
+                if (cacheDir != null) {
+                    chapterFile = new File(cacheDir, digests.get(i - 1) + ".if");
+                    chapterFiles.add(chapterFile);
+                    if (chapterFile.isFile()) {
+                        continue;
+                    }
+                } else {
+                    chapterFile = File.createTempFile("nimas2pdf", ".if");
+                    chapterFiles.add(chapterFile);
+                }
+                rendered.add(i);
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        if (profile != null) {
+                            profile.attach();
+                        }
+                        try {
+                            return renderChapter(opfReader, splitter, linkTargets, chapterIndex, chapterFile);
+                        } finally {
+                            if (profile != null) {
+                                profile.detach();
+                            }
+                        }
+                    }
+                }));
             }
-            //Accessible PDF
-            Boolean isAccessiblePDF = Boolean.parseBoolean(FrameMain.applicationProps.getProperty("accessiblePDF"));
-            if (isAccessiblePDF) {
-                foUserAgent.setAccessibility(true);
+            if (cacheDir != null) {
+                logger.info("Reusing " + (chapters - rendered.size()) + " of " + chapters
+                        + " chapters from " + cacheDir.getPath());
+            }
+            for (int i = 0; i < results.size(); i++) {
+                logger.info("Chapter " + rendered.get(i) + " generated " + waitFor(results.get(i)) + " pages.");
             }
-            foUserAgent.setTitle(opfReader.getTitle());
-            foUserAgent.setSubject(opfReader.getSubject());
-            foUserAgent.setKeywords(opfReader.getIdentifier());
-            foUserAgent.setProducer("NIMAS2PDF");
-            //debug message
-            logger.info("Transforming " + xmlFile.getName() + " to PDF.");
-            logger.info("Using " + xsltFile.getName() + " for tranformation.");
 
-            // setup output based on parameter
+            // merge
+            ConversionProfile.begin(ConversionProfile.Stage.PDF);
+            FOUserAgent foUserAgent = newFOUserAgent(opfReader);
+            IFDocumentHandler pdfHandler = fopFactory.getRendererFactory().createDocumentHandler(
+                    foUserAgent, MimeConstants.MIME_PDF);
             out = new java.io.FileOutputStream(resultfile);
             out = new java.io.BufferedOutputStream(out);
+            pdfHandler.setResult(new StreamResult(out));
+            IFUtil.setupFonts(pdfHandler);
+            ChapterMerger merger = new ChapterMerger(pdfHandler, foUserAgent, linkTargets);
+            for (File chapterFile : chapterFiles) {
+                merger.appendChapter(new StreamSource(chapterFile));
+            }
+            merger.finish();
+            pageCount = merger.getPageCount();
+            logger.info("Generated " + pageCount + " pages in total.");
+            merged = true;
+        } catch (IFException ex) {
+            throw new FOPException(ex);
+        } finally {
+            ConversionProfile.end(ConversionProfile.Stage.PDF);
+            executor.shutdownNow();
+            try {
+                // chapters still rendering after another one failed write their files before the clean up
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    logger.info("Waiting for the chapters still rendering");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } finally {
+                    if (!merged) {
+                        resultfile.delete();
+                    }
+                }
+            }
+            if (cacheDir == null) {
+                for (File chapterFile : chapterFiles) {
+                    chapterFile.delete();
+                }
+            }
+        }
+        if (cacheDir != null) {
+            // drop chapters of earlier versions of the book
+            for (File file : cacheDir.listFiles()) {
+                if (file.isFile() && !chapterFiles.contains(file)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders one chapter to FOP's intermediate format, laid out for PDF,
+     * transforming only its slice of the DTBook.
+     * @return number of pages in the chapter
+     */
+    private int renderChapter(OPFReader opfReader, ChapterSplitter splitter, Map<String, Integer> linkTargets,
+            int chapterIndex, File chapterFile)
+            throws IOException, SAXException, TransformerException {
+        FOUserAgent foUserAgent = newFOUserAgent(opfReader);
+        IFDocumentHandler pdfHandler = fopFactory.getRendererFactory().createDocumentHandler(
+                foUserAgent, MimeConstants.MIME_PDF);
+        IFSerializer serializer = new IFSerializer();
+        serializer.setContext(new IFContext(foUserAgent));
+        serializer.mimicDocumentHandler(pdfHandler);
+        foUserAgent.setDocumentHandlerOverride(progress != null
+                ? new ProgressDocumentHandler(serializer, progress) : serializer);
+
+        // rendered next to the destination and renamed once complete, so an
+        // interrupted render never ends up in the chapter cache
+        File partFile = new File(chapterFile.getPath() + ".part");
+        OutputStream out = new java.io.FileOutputStream(partFile);
+        out = new java.io.BufferedOutputStream(out);
+        XMLReader reader = null;
+        int pages = -1;
+        try {
+            Fop fop = fopFactory.newFop(MimeConstants.MIME_FOP_IF, foUserAgent, out);
+            // the slice has no DOCTYPE, its attribute defaults are filled in
+            reader = XMLParserPool.getXMLReader(false);
+            SAXTransformerFactory factory = XMLParserPool.getTransformerFactory();
+            TransformerHandler handler = factory.newTransformerHandler(TemplatesCache.getTemplates(xsltFile));
+            Transformer transformer = handler.getTransformer();
+            setParams(transformer);
+            transformer.setParameter("pageSequenceMode", "chapter");
+            transformer.setParameter("chapterIndex", String.valueOf(chapterIndex));
+            handler.setResult(new SAXResult(new ChapterLinkFilter(newFOPHandler(fop), linkTargets, chapterIndex - 1)));
+            ConversionEvents.XSLTEvent event = ConversionEvents.beginXSLT();
             try {
-                // Construct fop with desired output format
-                Fop fop = fopFactory.newFop(MimeConstants.MIME_PDF, foUserAgent, out);
-
-                // Setup JAXP using identity transformer
-                SAXTransformerFactory factory = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
-
-
-                // Setup XSLT
-                Source xslt = new StreamSource(xsltFile);
-                TransformerHandler handler = factory.newTransformerHandler(xslt);
-                Transformer transformer = handler.getTransformer();
-                reader.setContentHandler(handler);
-                //Set stylesheet parameters
-                setParams(transformer);
-
-                // Setup input for XSLT transformation
-                InputStream in = new FileInputStream(xmlFile);
-                InputSource src = new InputSource(in);
-
-                // Resulting SAX events (the generated FO) must be piped through to FOP
-                Result res = new SAXResult(fop.getDefaultHandler());
-                handler.setResult(res);
-                //handler.getTransformer().setErrorListener(new DefaultErrorListener());
-
-                // Start XSLT transformation and FOP processing by invoking the XML parser
-                reader.parse(src);
-
-                // Result processing
-                FormattingResults formatingResults = fop.getResults();
-                java.util.List pageSequences = formatingResults.getPageSequences();
-                for (java.util.Iterator it = pageSequences.iterator(); it.hasNext();) {
-                    PageSequenceResults pageSequenceResults = (PageSequenceResults) it.next();
-                    logger.info("PageSequence " + (String.valueOf(pageSequenceResults.getID()).length() > 0
-                            ? pageSequenceResults.getID() : "<no id>") + " generated " + pageSequenceResults.getPageCount() + " pages.");
+                // the DTBook is counted once, by digestChapters
+                parse(reader, handler, splitter.getSlice(chapterIndex));
+            } finally {
+                ConversionEvents.endXSLT(event, xmlFile, chapterIndex, "if");
+            }
+            pages = fop.getResults().getPageCount();
+        } finally {
+            XMLParserPool.release(reader);
+            out.close();
+            if (pages < 0) {
+                partFile.delete();
+            }
+        }
+        chapterFile.delete();
+        if (!partFile.renameTo(chapterFile)) {
+            partFile.delete();
+            throw new IOException("Unable to write " + chapterFile.getPath());
+        }
+        return pages;
+    }
+
+    /**
+     * Waits for a chapter, rethrowing the exception it failed with.
+     */
+    private int waitFor(Future<Integer> result)
+            throws IOException, SAXException, TransformerException {
+        try {
+            return result.get().intValue();
+        } catch (InterruptedException ex) {
+            throw new IOException("Interrupted while rendering chapters");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SAXException) {
+                throw (SAXException) cause;
+            } else if (cause instanceof TransformerException) {
+                throw (TransformerException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Reads the DTBook once for the chapters of chapter mode.
+     * @param splitter receives the DTBook as well, to be split into chapters
+     * @return the content hashes of the page sequences dtbook2fo.xsl
+     * generates in chapter mode when level1 are not split
+     */
+    private ChapterDigester digestChapters(ChapterSplitter splitter) throws IOException, SAXException {
+        ChapterDigester digester = new ChapterDigester(xmlDir);
+        XMLReader reader = getXMLReader();
+        try {
+            parse(reader, new TeeContentHandler(digester, splitter), true);
+        } finally {
+            XMLParserPool.release(reader);
+        }
+        return digester;
+    }
+
+    /**
+     * Parses the DTBook into a handler, charging the prolog to the DTD stage
+     * of the conversion profile and the rest to the XSLT stage.
+     * @param counted true to count the bytes and text read for the progress
+     */
+    private void parse(XMLReader reader, ContentHandler handler, boolean counted)
+            throws IOException, SAXException {
+        InputStream in = new FileInputStream(xmlFile);
+        if (counted && progress != null) {
+            progress.addBytesToRead(xmlFile.length());
+            in = new ProgressInputStream(in, progress);
+            handler = new ProgressFilter(handler, progress);
+        }
+        parse(reader, handler, in);
+    }
+
+    /**
+     * Parses a DTBook into a handler, see parse(XMLReader, ContentHandler,
+     * boolean), and closes the stream.
+     */
+    private void parse(XMLReader reader, ContentHandler handler, InputStream in)
+            throws IOException, SAXException {
+        ConversionProfile.begin(ConversionProfile.Stage.XSLT);
+        ConversionProfile.begin(ConversionProfile.Stage.DTD);
+        try {
+            reader.setContentHandler(ConversionProfile.getCurrent() != null ? new ProfileFilter(handler, true) : handler);
+            reader.parse(new InputSource(in));
+        } finally {
+            // left at the root element unless the prolog failed
+            ConversionProfile.end(ConversionProfile.Stage.DTD);
+            ConversionProfile.end(ConversionProfile.Stage.XSLT);
+            in.close();
+        }
+    }
+
+    /**
+     * @return everything besides its own content the layout of a chapter
+     * depends on: stylesheets, settings, FOP and its configuration and the
+     * package metadata written to the document header
+     */
+    private String getFingerprint(OPFReader opfReader) throws TransformerException {
+        StringBuilder sb = new StringBuilder();
+        for (File file : TemplatesCache.getStylesheetFiles(xsltFile)) {
+            sb.append(file.getPath()).append('@').append(file.lastModified()).append('\n');
+        }
+        for (String name : STYLESHEET_PARAMS) {
+            sb.append(name).append('=').append(props.getProperty(name, "")).append('\n');
+        }
+        sb.append("pdfA=").append(props.getProperty("pdfA", "")).append('\n');
+        sb.append("images=").append(getDerivativeProfile()).append('\n');
+        // the stylesheet sees the attribute defaults of the DTD, if loaded
+        sb.append("dtd=").append(isExternalDTDNeeded()).append('\n');
+        sb.append("fop=").append(Version.getVersion()).append('\n');
+        sb.append(fopConfig.getPath()).append('@').append(fopConfig.lastModified()).append('\n');
+        sb.append(opfReader.getIdentifier()).append('\n');
+        sb.append(opfReader.getTitle()).append('\n');
+        sb.append(opfReader.getSubject()).append('\n');
+        return sb.toString();
+    }
+
+    private File getChapterCacheDir(OPFReader opfReader) throws IOException {
+        String name = opfReader.getIdentifier().replaceAll("[^A-Za-z0-9._-]", "_");
+        File cacheDir = new File(new File(ApplicationProperties.getUserDir(), "chapters"), name);
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            throw new IOException("Unable to create chapter cache " + cacheDir.getPath());
+        }
+        return cacheDir;
+    }
+
+    private int getChapterThreads() {
+        int threads = 1;
+        try {
+            threads = Integer.parseInt(props.getProperty("chapterThreads", "1").trim());
+        } catch (NumberFormatException ex) {
+            logger.warning("Invalid chapterThreads " + props.getProperty("chapterThreads"));
+        }
+        return threads;
+    }
+
+    /**
+     * @param progress fed with the source bytes read and the pages laid out,
+     * null for none
+     */
+    public void setProgress(ConversionProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * @return the number of pages generated by the last PDF conversion
+     */
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return FOP's handler behind a filter making image references absolute,
+     * see ImageURIFilter, pointing them at derivatives or at images
+     * downsampled to imageDownsampleDPI, and at one file per distinct image
+     * with imageDeduplication
+     */
+    private ContentHandler newFOPHandler(Fop fop) throws FOPException {
+        String baseURI = xmlDir.toURI().toString();
+        ContentHandler handler = fop.getDefaultHandler();
+        if (ConversionEvents.isAvailable()) {
+            // a recording may start at any time
+            handler = new PageSequenceEventFilter(handler, fop);
+        }
+        if (downsampleDPI > 0) {
+            handler = new DownsamplingImageFilter(handler, baseURI, downsamples, downsampleDPI, fop.getUserAgent());
+        }
+        ImageURIFilter filter;
+        if (derivatives != null) {
+            filter = new DerivativeImageFilter(handler, baseURI, derivatives, imageWidth, imageHeight, imageDPI);
+        } else if (downsampleDPI > 0) {
+            filter = (ImageURIFilter) handler;
+        } else {
+            filter = new ImageURIFilter(handler, baseURI);
+        }
+        if (ImageStore.isEnabled(props)) {
+            filter.setImageStore(ImageStore.getImageStore());
+        }
+        return ConversionProfile.getCurrent() != null ? new ProfileFilter(filter, false) : filter;
+    }
+
+    /**
+     * Charges the pages FOP renders to PDF to the PDF stage of the conversion
+     * profile, see ProfiledDocumentHandler, and counts them for the progress,
+     * see ProgressDocumentHandler.
+     */
+    private void overrideDocumentHandler(FOUserAgent foUserAgent) throws FOPException {
+        if (ConversionProfile.getCurrent() == null && progress == null) {
+            return;
+        }
+        IFDocumentHandler pdfHandler = fopFactory.getRendererFactory().createDocumentHandler(
+                foUserAgent, MimeConstants.MIME_PDF);
+        if (ConversionProfile.getCurrent() != null) {
+            pdfHandler = new ProfiledDocumentHandler(pdfHandler);
+        }
+        if (progress != null) {
+            pdfHandler = new ProgressDocumentHandler(pdfHandler, progress);
+        }
+        foUserAgent.setDocumentHandlerOverride(pdfHandler);
+    }
+
+    /**
+     * @return the size the images are shrunk to and the DPI they are
+     * downsampled to, empty if the package images are used as they are
+     */
+    private String getDerivativeProfile() {
+        String profile = derivatives != null ? imageWidth + "x" + imageHeight + "@" + imageDPI : "";
+        return downsampleDPI > 0 ? profile + "/" + downsampleDPI : profile;
+    }
+
+    /**
+     * @return false if the dtdFastPath setting is on and the DTBook reads the
+     * same without its DTD, see DTDGrammarPool
+     */
+    private synchronized boolean isExternalDTDNeeded() {
+        if (externalDTDNeeded == null) {
+            boolean needed = true;
+            if (Boolean.parseBoolean(props.getProperty("dtdFastPath", "true"))) {
+                ConversionProfile.begin(ConversionProfile.Stage.DTD);
+                try {
+                    needed = DTDGrammarPool.isExternalDTDNeeded(xmlFile);
+                } catch (IOException ex) {
+                    logger.warning("IO Exception: " + ex.getMessage());
+                } finally {
+                    ConversionProfile.end(ConversionProfile.Stage.DTD);
                 }
-                logger.info("Generated " + formatingResults.getPageCount() + " pages in total.");
+            }
+            externalDTDNeeded = Boolean.valueOf(needed);
+        }
+        return externalDTDNeeded.booleanValue();
+    }
 
+    /**
+     * @return a parser for the DTBook, see XMLParserPool, which does not
+     * share the DTD of other books if the DTBook has an internal subset
+     */
+    private XMLReader getXMLReader() throws SAXException {
+        return XMLParserPool.getXMLReader(isExternalDTDNeeded(), !hasInternalSubset());
+    }
 
+    private synchronized boolean hasInternalSubset() {
+        if (internalSubset == null) {
+            boolean found = true;
+            try {
+                found = DTDGrammarPool.hasInternalSubset(xmlFile);
             } catch (IOException ex) {
-                logger.severe("IO Exception" + ex.getMessage());
-            } catch (SAXException ex) {
-                logger.severe("SAX Exception" + ex.getMessage());
-            } catch (Exception ex) {
-                logger.severe(ex.getMessage());
-            } finally {
-                out.close();
+                logger.warning("IO Exception: " + ex.getMessage());
             }
+            internalSubset = Boolean.valueOf(found);
+        }
+        return internalSubset.booleanValue();
+    }
 
-        } catch (Exception ex) {
-            logger.severe(ex.getMessage());
+    @SuppressWarnings("unchecked")
+    private FOUserAgent newFOUserAgent(OPFReader opfReader) {
+        FOUserAgent foUserAgent = fopFactory.newFOUserAgent();
+        //configure user agent
+        //resolve images relative to the document, URI form deals with spaces
+        foUserAgent.setBaseURL(xmlDir.toURI().toString());
+        //PDF/A-1b
+        Boolean isPDFa = Boolean.parseBoolean(props.getProperty("pdfA"));
+        if (isPDFa) {
+            foUserAgent.getRendererOptions().put("pdf-a-mode", "PDF/A-1b");
         }
+        //Accessible PDF
+        Boolean isAccessiblePDF = Boolean.parseBoolean(props.getProperty("accessiblePDF"));
+        if (isAccessiblePDF) {
+            foUserAgent.setAccessibility(true);
+        }
+        foUserAgent.setTitle(opfReader.getTitle());
+        foUserAgent.setSubject(opfReader.getSubject());
+        foUserAgent.setKeywords(opfReader.getIdentifier());
+        foUserAgent.setProducer("NIMAS2PDF");
+        return foUserAgent;
     }
+
+    private void logResults(FormattingResults formatingResults) {
+        java.util.List pageSequences = formatingResults.getPageSequences();
+        for (java.util.Iterator it = pageSequences.iterator(); it.hasNext();) {
+            PageSequenceResults pageSequenceResults = (PageSequenceResults) it.next();
+            logger.info("PageSequence " + (String.valueOf(pageSequenceResults.getID()).length() > 0
+                    ? pageSequenceResults.getID() : "<no id>") + " generated " + pageSequenceResults.getPageCount() + " pages.");
+        }
+        pageCount = formatingResults.getPageCount();
+        logger.info("Generated " + pageCount + " pages in total.");
+    }
+
 }
@@ -5,88 +5,85 @@
 
 package org.eightfoldconsulting.nimas2pdf;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.InputStream;
+import java.io.IOException;
 import java.io.StringReader;
-import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 
 /**
+ * Resolves the OEB package and DTBook DTDs to the copies in xml/dtd, which
+ * are read once per JVM and then served from memory.
  *
  * @author Greg
  */
 public class XMLEntityResolver implements EntityResolver {
-    Logger logger = Logger.getLogger(this.getClass().getName());
-    private static String jarDirPath;
 
     /**
-     * 
+     * System identifier of the DTBook DTD.
      */
-    public XMLEntityResolver(){
-        try {
-            File jarFile = new File(FrameMain.class.getProtectionDomain().getCodeSource().getLocation().getPath().toString());
-            String jarDir = jarFile.getParent().toString();
-            jarDirPath = URLDecoder.decode(jarDir, "UTF-8");
-        } catch (Exception ex) {
-            logger.severe(ex.getMessage());
-        }
-    }
- @Override
-public InputSource resolveEntity (String publicId, String systemId)
-   {
+    public static final String DTBOOK_DTD = "http://www.daisy.org/z3986/2005/dtbook-2005-3.dtd";
+    private static Logger logger = Logger.getLogger(XMLEntityResolver.class.getName());
+    private static final Map<String, String> files = new HashMap<String, String>();
+    private static final Map<String, byte[]> entities = new ConcurrentHashMap<String, byte[]>();
 
-     //return new InputSource(new StringReader(""));
-     if (systemId.equals("http://openebook.org/dtds/oeb-1.2/oebpkg12.dtd")) {
-         File dtbFile = new File(jarDirPath, "xml/dtd/oebpkg12.dtd");
-         InputStream in;
-             // debug message
-         logger.info("Resolving entity "+systemId);
-            try {
-                in = new FileInputStream(dtbFile);
-                return new InputSource(in);
+    static {
+        files.put("http://openebook.org/dtds/oeb-1.2/oebpkg12.dtd", "xml/dtd/oebpkg12.dtd");
+        files.put("http://openebook.org/dtds/oeb-1.2/oeb12.ent", "xml/dtd/oeb12.ent");
+        files.put(DTBOOK_DTD, "xml/dtd/dtbook-2005-3.dtd");
+    }
 
-            } catch (FileNotFoundException ex) {
-                logger.severe("openebook DTB not found: "+ex.getMessage());
-                return null;
-            }
-       
-     } else if (systemId.equals("http://openebook.org/dtds/oeb-1.2/oeb12.ent")) {
-          File dtbFile = new File(jarDirPath, "xml/dtd/oeb12.ent ");
-         InputStream in;
-             // debug message
-         logger.info("Resolving entity: "+systemId);
-            try {
-                in = new FileInputStream(dtbFile);
-                return new InputSource(in);
+    /**
+     *
+     */
+    public XMLEntityResolver(){
+    }
 
-            } catch (FileNotFoundException ex) {
-                logger.severe("openebook ENT not found: "+ex.getMessage());
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId) {
+        ConversionEvents.EntityResolutionEvent event = ConversionEvents.beginEntityResolution();
+        if (files.containsKey(systemId)) {
+            boolean cached = entities.containsKey(systemId);
+            byte[] bytes = getEntity(systemId);
+            ConversionEvents.endEntityResolution(event, publicId, systemId, bytes != null ? bytes.length : 0, cached);
+            if (bytes == null) {
                 return null;
             }
+            InputSource source = new InputSource(new ByteArrayInputStream(bytes));
+            source.setPublicId(publicId);
+            source.setSystemId(systemId);
+            return source;
+        }
+        // debug message
+        logger.info("Entity resolver provided empty string for: " + systemId);
+        ConversionEvents.endEntityResolution(event, publicId, systemId, 0, false);
+        return new InputSource(new StringReader(""));
+    }
 
-     } else if (systemId.equals("http://www.daisy.org/z3986/2005/dtbook-2005-3.dtd")) {
-          File dtbFile = new File(jarDirPath, "xml/dtd/dtbook-2005-3.dtd");
-         InputStream in;
-             // debug message
-         logger.info("Resolving entity "+systemId);
+    /**
+     * @param systemId system identifier of one of the DTDs in xml/dtd
+     * @return the contents of the local copy, null if it is not a known DTD
+     * or cannot be read
+     */
+    public static byte[] getEntity(String systemId) {
+        byte[] bytes = entities.get(systemId);
+        if (bytes == null && files.containsKey(systemId)) {
+            File file = new File(ApplicationProperties.getJarDirPath(), files.get(systemId));
+            // debug message
+            logger.info("Resolving entity " + systemId);
             try {
-                in = new FileInputStream(dtbFile);
-                return new InputSource(in);
-
-            } catch (FileNotFoundException ex) {
-                logger.severe("DTBook DTB not found: "+ex.getMessage());
-                return null;
+                bytes = FileUtils.readFileToByteArray(file);
+                entities.put(systemId, bytes);
+            } catch (IOException ex) {
+                logger.severe("DTD not found: " + ex.getMessage());
             }
-
-     }else{
-              // debug message
-         logger.info("Entity resolver provided empty string for: "+systemId);
-      return new InputSource(new StringReader(""));
-       //return null;
-     }
-   }
+        }
+        return bytes;
+    }
 }
@@ -0,0 +1,144 @@
+// Copyright (C) 2009 Eightfold Consulting LLC
+//
+// This program is free software; you can redistribute it and/or modify it under the terms of the GNU General Public License
+// as published by the Free Software Foundation; either version 2 of the License, or (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+// without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+// See the GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along with this program;
+// if not, write to the Free Software Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package org.eightfoldconsulting.nimas2pdf;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * DTBook parsers and XSLT factories shared between conversions.
+ * <p>
+ * Looking up a JAXP factory goes through the service loader, and a new
+ * parser builds its whole configuration, for every conversion and every
+ * chapter. The parser factory is looked up once, parsers are handed back
+ * after a parse and reused, and every thread keeps its own transformer
+ * factory, as JAXP factories are not thread safe.
+ *
+ * @author Gregory Buchenberger
+ */
+public class XMLParserPool {
+
+    // enough for every package and chapter thread of a batch
+    private static final int MAX_IDLE = 64;
+    private static final SAXParserFactory parserFactory = newParserFactory();
+    private static final Queue<XMLReader> readers = new ConcurrentLinkedQueue<XMLReader>();
+    private static final AtomicInteger idle = new AtomicInteger();
+    private static final AtomicInteger created = new AtomicInteger();
+    private static final AtomicInteger reused = new AtomicInteger();
+    private static final DefaultHandler noHandler = new DefaultHandler();
+    private static final ThreadLocal<SAXTransformerFactory> transformerFactory =
+            new ThreadLocal<SAXTransformerFactory>() {
+
+                @Override
+                protected SAXTransformerFactory initialValue() {
+                    return (SAXTransformerFactory) TransformerFactory.newInstance();
+                }
+            };
+
+    private XMLParserPool() {
+    }
+
+    private static SAXParserFactory newParserFactory() {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setValidating(false);
+        spf.setNamespaceAware(true);
+        return spf;
+    }
+
+    /**
+     * Takes a namespace aware parser resolving the DTDs in xml/dtd and sharing
+     * the DTDGrammarPool. Hand it back with release once the parse is over.
+     * @param loadExternalDTD false to parse without the DTD, see
+     * DTDGrammarPool.isExternalDTDNeeded
+     * @return a parser no other thread uses until it is released
+     * @throws SAXException if no parser can be created
+     */
+    public static XMLReader getXMLReader(boolean loadExternalDTD) throws SAXException {
+        return getXMLReader(loadExternalDTD, true);
+    }
+
+    /**
+     * Takes a parser as getXMLReader(loadExternalDTD) does.
+     * @param loadExternalDTD false to parse without the DTD
+     * @param shareGrammars false to parse without the DTDGrammarPool, for
+     * documents with an internal subset, see DTDGrammarPool.hasInternalSubset
+     * @return a parser no other thread uses until it is released
+     * @throws SAXException if no parser can be created
+     */
+    public static XMLReader getXMLReader(boolean loadExternalDTD, boolean shareGrammars) throws SAXException {
+        XMLReader reader = readers.poll();
+        if (reader != null) {
+            idle.decrementAndGet();
+            reused.incrementAndGet();
+        } else {
+            try {
+                synchronized (parserFactory) {
+                    reader = parserFactory.newSAXParser().getXMLReader();
+                }
+            } catch (ParserConfigurationException ex) {
+                throw new SAXException(ex);
+            }
+            reader.setEntityResolver(new XMLEntityResolver());
+            DTDGrammarPool.setGrammarPool(reader);
+            created.incrementAndGet();
+        }
+        DTDGrammarPool.setLoadExternalDTD(reader, loadExternalDTD);
+        if (!shareGrammars) {
+            DTDGrammarPool.setGrammarPool(reader, false);
+        }
+        return reader;
+    }
+
+    /**
+     * Returns a parser taken with getXMLReader to the pool. The parser must
+     * not be used afterwards.
+     * @param reader parser, may be null
+     */
+    public static void release(XMLReader reader) {
+        if (reader == null) {
+            return;
+        }
+        // drops the handlers of the last parse, which may hold a whole FOP tree
+        reader.setContentHandler(noHandler);
+        // back to the shared grammars, if the parse went without them
+        DTDGrammarPool.setGrammarPool(reader);
+        if (idle.incrementAndGet() <= MAX_IDLE) {
+            readers.offer(reader);
+        } else {
+            idle.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the transformer factory of the calling thread
+     */
+    public static SAXTransformerFactory getTransformerFactory() {
+        return transformerFactory.get();
+    }
+
+    /**
+     * @return one line on the parsers created and reused since the start of
+     * the process
+     */
+    public static String getStatistics() {
+        return String.format("XML parser pool: %d parsers created, reused %d times", created.get(), reused.get());
+    }
+}
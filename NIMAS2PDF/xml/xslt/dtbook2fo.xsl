@@ -44,6 +44,15 @@ Copyright (C) 2009 Eightfold Consulting LLC
     name="pageWidth">8.5in</xsl:param>
   <xsl:param 
     name="pageHeight">11in</xsl:param>
+  <!--book: one page sequence, chapter: one page sequence per level1-->
+  <xsl:param 
+    name="pageSequenceMode">book</xsl:param>
+  <!--in chapter mode, split level1 with more elements than this at level2, 0 to never split-->
+  <xsl:param 
+    name="pageSequenceMaxNodes">0</xsl:param>
+  <!--in chapter mode, only output page sequence number n (1 based), 0 for all-->
+  <xsl:param 
+    name="chapterIndex">0</xsl:param>
 
   <!--includes-->
   <xsl:include
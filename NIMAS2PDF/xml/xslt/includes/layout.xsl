@@ -18,6 +18,13 @@ Copyright (C) 2009 Eightfold Consulting LLC
   xmlns:fox="http://xmlgraphics.apache.org/fop/extensions"
   xmlns:xsl="http://www.w3.org/1999/XSL/Transform">
 
+  <!--chapter mode page sequences, see chapter-page-sequences-->
+  <!--1 if the front matter titles have a page sequence of their own-->
+  <xsl:variable name="titleCount"
+    select="count(/dtb:dtbook/dtb:book/dtb:frontmatter/*[not(self::dtb:level1 or self::dtb:level)][1])" />
+  <!--level1 of page sequence $chapterIndex, if it is not the titles-->
+  <xsl:variable name="chunkId"
+    select="generate-id((/dtb:dtbook/dtb:book/*/dtb:level1 | /dtb:dtbook/dtb:book/*/dtb:level)[position() = $chapterIndex - $titleCount])" />
 
 
 
@@ -68,6 +75,13 @@ Copyright (C) 2009 Eightfold Consulting LLC
                 <fo:conditional-page-master-reference master-reference="bottom-page" odd-or-even="odd" />
               </fo:repeatable-page-master-alternatives>
             </fo:page-sequence-master>
+            <!--chapters after the first page sequence have no cover page-->
+            <fo:page-sequence-master master-name="landscape-chapter">
+              <fo:repeatable-page-master-alternatives>
+                <fo:conditional-page-master-reference master-reference="top-page" odd-or-even="even" />
+                <fo:conditional-page-master-reference master-reference="bottom-page" odd-or-even="odd" />
+              </fo:repeatable-page-master-alternatives>
+            </fo:page-sequence-master>
           </xsl:when>
           <xsl:otherwise>
             <fo:page-sequence-master master-name="portrait">
@@ -77,6 +91,13 @@ Copyright (C) 2009 Eightfold Consulting LLC
                 <fo:conditional-page-master-reference master-reference="right-page" odd-or-even="odd" />
               </fo:repeatable-page-master-alternatives>
             </fo:page-sequence-master>
+            <!--chapters after the first page sequence have no cover page-->
+            <fo:page-sequence-master master-name="portrait-chapter">
+              <fo:repeatable-page-master-alternatives>
+                <fo:conditional-page-master-reference master-reference="left-page" odd-or-even="even" />
+                <fo:conditional-page-master-reference master-reference="right-page" odd-or-even="odd" />
+              </fo:repeatable-page-master-alternatives>
+            </fo:page-sequence-master>
           </xsl:otherwise>
         </xsl:choose>
 
@@ -84,15 +105,28 @@ Copyright (C) 2009 Eightfold Consulting LLC
       </fo:layout-master-set>
 
       <!-- bookmark section -->
-      <xsl:if test="$bookmarkHeaders='true'">
+      <!--only the bookmarks of the selected page sequence, if any-->
+      <xsl:variable name="bookmarkH1"
+        select="/dtb:dtbook/dtb:book//dtb:level1/dtb:h1[$chapterIndex = 0 or generate-id(ancestor::*[parent::*/parent::dtb:book]) = $chunkId]" />
+      <xsl:variable name="bookmarkTable"
+        select="/dtb:dtbook/dtb:book//dtb:table[$bookmarkTables='true'][$chapterIndex = 0
+          or generate-id(ancestor-or-self::*[parent::*/parent::dtb:book]) = $chunkId
+          or ($chapterIndex = 1 and $titleCount = 1 and ancestor-or-self::*[parent::dtb:frontmatter][not(self::dtb:level1 or self::dtb:level)])]" />
+      <xsl:if test="$bookmarkHeaders='true' and ($bookmarkH1 or $bookmarkTable)">
         <fo:bookmark-tree>
-          <xsl:for-each select="/dtb:dtbook/dtb:book//dtb:level1/dtb:h1">
-            <fo:bookmark internal-destination="{generate-id(.)}">
+          <xsl:for-each select="$bookmarkH1">
+            <fo:bookmark>
+              <xsl:attribute name="internal-destination">
+                <xsl:call-template name="id" />
+              </xsl:attribute>
               <fo:bookmark-title>
                 <xsl:value-of select="normalize-space(./text())" />
               </fo:bookmark-title>
               <xsl:for-each select="parent::node()/descendant::dtb:h2">
-                <fo:bookmark internal-destination="{generate-id(.)}">
+                <fo:bookmark>
+                  <xsl:attribute name="internal-destination">
+                    <xsl:call-template name="id" />
+                  </xsl:attribute>
                   <fo:bookmark-title>
                     <xsl:value-of select="normalize-space(./text())" />
                   </fo:bookmark-title>
@@ -101,8 +135,11 @@ Copyright (C) 2009 Eightfold Consulting LLC
             </fo:bookmark>
           </xsl:for-each>
           <xsl:if test="$bookmarkTables='true'">
-            <xsl:for-each select="/dtb:dtbook/dtb:book//dtb:table">
-              <fo:bookmark internal-destination="{generate-id(.)}">
+            <xsl:for-each select="$bookmarkTable">
+              <fo:bookmark>
+                <xsl:attribute name="internal-destination">
+                  <xsl:call-template name="id" />
+                </xsl:attribute>
                 <fo:bookmark-title>
                   <xsl:text>Table: </xsl:text>
                   <xsl:value-of select="./@id" />
@@ -114,9 +151,13 @@ Copyright (C) 2009 Eightfold Consulting LLC
       </xsl:if>
       
       <xsl:choose>
+        <xsl:when test="$pageSequenceMode='chapter'">
+          <!--ONE PAGE SEQUENCE PER CHAPTER-->
+          <xsl:call-template name="chapter-page-sequences" />
+        </xsl:when>
         <xsl:when test="$pageOrientation='landscape'">
           <!--LANDSCAPE PAGE SEQUENCE-->
-      <fo:page-sequence id="landscape{generate-id(.)}" initial-page-number="1" master-reference="landscape">
+      <fo:page-sequence id="landscape" initial-page-number="1" master-reference="landscape">
         <!--Top Header(landscape)-->
         <fo:static-content flow-name="top-header">
           <fo:block xsl:use-attribute-sets="page_numbers" border-bottom="solid 2pt black">
@@ -139,7 +180,7 @@ Copyright (C) 2009 Eightfold Consulting LLC
         </xsl:when>
         <xsl:otherwise>
           <!-- PORTRAIT PAGE SEQUENCE -->
-      <fo:page-sequence id="portrait{generate-id(.)}" master-reference="portrait">
+      <fo:page-sequence id="portrait" master-reference="portrait">
         <fo:static-content flow-name="left-footer">
           <fo:block xsl:use-attribute-sets="portrait-footer-common" text-align="left">
             <fo:retrieve-marker retrieve-class-name="pn" retrieve-position="last-ending-within-page"/>
@@ -163,4 +204,153 @@ Copyright (C) 2009 Eightfold Consulting LLC
       
     </fo:root>
   </xsl:template>
+
+  <!--
+  Chapter page sequences: FOP can only release the layout of a page sequence
+  once it ends, so a book in a single page sequence is held in memory as a
+  whole. Here the front matter titles and every level1 (or level) of the
+  front, body and rear matter get a page sequence of their own. A level1
+  with more than $pageSequenceMaxNodes elements is further split at its
+  level2 children.
+  Every level1 ends on an even page, so that the next one starts on an odd
+  page and a right-page, just as when it is rendered on its own, see
+  XMLConverter.convertChapters2PDF.
+  A $chapterIndex other than 0 selects a single page sequence, the titles
+  counting as the first one. Level1 are not split then.
+  -->
+  <xsl:template name="chapter-page-sequences">
+    <xsl:variable name="titles"
+      select="/dtb:dtbook/dtb:book/dtb:frontmatter/*[not(self::dtb:level1 or self::dtb:level)]" />
+    <xsl:variable name="chapters"
+      select="/dtb:dtbook/dtb:book/*/dtb:level1 | /dtb:dtbook/dtb:book/*/dtb:level" />
+    <xsl:if test="$titles and $chapterIndex &lt;= 1">
+      <xsl:call-template name="chapter-page-sequence">
+        <xsl:with-param name="content" select="$titles" />
+        <xsl:with-param name="first" select="true()" />
+      </xsl:call-template>
+    </xsl:if>
+    <xsl:for-each select="$chapters[$chapterIndex = 0 or position() = $chapterIndex - $titleCount]">
+      <xsl:variable name="first" select="not($titles) and generate-id(.) = generate-id($chapters[1])" />
+      <xsl:choose>
+        <xsl:when test="$chapterIndex = 0 and $pageSequenceMaxNodes &gt; 0 and dtb:level2 and count(.//*) &gt; $pageSequenceMaxNodes">
+          <xsl:variable name="level1" select="." />
+          <xsl:for-each select="dtb:level2">
+            <!--each level2 with the siblings up to the next level2, the first also takes the level1 heading-->
+            <xsl:variable name="level2Id" select="generate-id(.)" />
+            <xsl:variable name="forcePageCount">
+              <xsl:choose>
+                <xsl:when test="position() = last()">end-on-even</xsl:when>
+                <xsl:otherwise>no-force</xsl:otherwise>
+              </xsl:choose>
+            </xsl:variable>
+            <xsl:variable name="following"
+              select="following-sibling::*[not(self::dtb:level2)][generate-id(preceding-sibling::dtb:level2[1]) = $level2Id]" />
+            <xsl:choose>
+              <xsl:when test="position() = 1">
+                <xsl:call-template name="chapter-page-sequence">
+                  <xsl:with-param name="content"
+                    select="$level1/*[not(self::dtb:level2) and not(preceding-sibling::dtb:level2)] | . | $following" />
+                  <xsl:with-param name="first" select="$first" />
+                  <xsl:with-param name="forcePageCount" select="$forcePageCount" />
+                  <xsl:with-param name="blockId">
+                    <xsl:for-each select="$level1">
+                      <xsl:call-template name="id" />
+                    </xsl:for-each>
+                  </xsl:with-param>
+                </xsl:call-template>
+              </xsl:when>
+              <xsl:otherwise>
+                <xsl:call-template name="chapter-page-sequence">
+                  <xsl:with-param name="content" select=". | $following" />
+                  <xsl:with-param name="forcePageCount" select="$forcePageCount" />
+                </xsl:call-template>
+              </xsl:otherwise>
+            </xsl:choose>
+          </xsl:for-each>
+        </xsl:when>
+        <xsl:otherwise>
+          <xsl:call-template name="chapter-page-sequence">
+            <xsl:with-param name="content" select="." />
+            <xsl:with-param name="first" select="$first" />
+          </xsl:call-template>
+        </xsl:otherwise>
+      </xsl:choose>
+    </xsl:for-each>
+  </xsl:template>
+
+  <!--a single chapter page sequence, only the first one starts with a cover page-->
+  <xsl:template name="chapter-page-sequence">
+    <xsl:param name="content" />
+    <xsl:param name="first" select="false()" />
+    <xsl:param name="blockId" />
+    <xsl:param name="forcePageCount">end-on-even</xsl:param>
+    <xsl:variable name="master">
+      <xsl:choose>
+        <xsl:when test="$pageOrientation='landscape'">landscape</xsl:when>
+        <xsl:otherwise>portrait</xsl:otherwise>
+      </xsl:choose>
+    </xsl:variable>
+    <fo:page-sequence force-page-count="{$forcePageCount}">
+      <xsl:attribute name="id">
+        <xsl:value-of select="$master" />
+        <xsl:for-each select="$content[1]">
+          <xsl:call-template name="id" />
+        </xsl:for-each>
+      </xsl:attribute>
+      <xsl:attribute name="master-reference">
+        <xsl:value-of select="$master" />
+        <xsl:if test="not($first)">-chapter</xsl:if>
+      </xsl:attribute>
+      <xsl:if test="$first and $master='landscape'">
+        <xsl:attribute name="initial-page-number">1</xsl:attribute>
+      </xsl:if>
+      <xsl:choose>
+        <xsl:when test="$master='landscape'">
+          <!--Top Header(landscape)-->
+          <fo:static-content flow-name="top-header">
+            <fo:block xsl:use-attribute-sets="page_numbers" border-bottom="solid 2pt black">
+              <fo:retrieve-marker retrieve-class-name="pn" retrieve-position="last-ending-within-page" />
+            </fo:block>
+          </fo:static-content>
+          <!--Bottom Footer (landscape)-->
+          <fo:static-content flow-name="bottom-footer">
+            <fo:block xsl:use-attribute-sets="page_numbers" border-top="solid 2pt black">
+              <fo:retrieve-marker retrieve-class-name="pn" retrieve-position="last-ending-within-page" />
+            </fo:block>
+          </fo:static-content>
+        </xsl:when>
+        <xsl:otherwise>
+          <fo:static-content flow-name="left-footer">
+            <fo:block xsl:use-attribute-sets="portrait-footer-common" text-align="left">
+              <fo:retrieve-marker retrieve-class-name="pn" retrieve-position="last-ending-within-page"/>
+            </fo:block>
+          </fo:static-content>
+          <fo:static-content flow-name="right-footer">
+            <fo:block xsl:use-attribute-sets="portrait-footer-common" text-align="right">
+              <fo:retrieve-marker retrieve-class-name="pn" retrieve-position="last-ending-within-page"/>
+            </fo:block>
+          </fo:static-content>
+        </xsl:otherwise>
+      </xsl:choose>
+      <!--Body, formatted as in the dtb:dtbook template-->
+      <fo:flow flow-name="xsl-region-body">
+        <fo:block font-family="{$baseFontFamily}" font-size="{$baseFontSize}" line-height="{$lineHeight}"
+          text-align="left">
+          <xsl:if test="$blockId">
+            <xsl:attribute name="id">
+              <xsl:value-of select="$blockId" />
+            </xsl:attribute>
+          </xsl:if>
+          <!--markers do not cross page sequences, carry the current print page over-->
+          <xsl:variable name="pagenum" select="$content[1]/preceding::dtb:pagenum[1]" />
+          <xsl:if test="$pagenum">
+            <fo:marker marker-class-name="pn">
+              <xsl:value-of select="$pagenum/*|$pagenum/text()" />
+            </fo:marker>
+          </xsl:if>
+          <xsl:apply-templates select="$content" />
+        </fo:block>
+      </fo:flow>
+    </fo:page-sequence>
+  </xsl:template>
 </xsl:stylesheet>
@@ -23,7 +23,7 @@ Copyright (C) 2009 Eightfold Consulting LLC
     
     <xsl:template match="m:math">
         <fo:instream-foreign-object>
-            <xsl:copy-of select="*"/>
+            <xsl:copy-of select="."/>
         </fo:instream-foreign-object>
     </xsl:template>
 </xsl:stylesheet>
@@ -17,6 +17,21 @@ Copyright (C) 2009 Eightfold Consulting LLC
   xmlns:fo="http://www.w3.org/1999/XSL/Format"
   xmlns:fox="http://xmlgraphics.apache.org/fop/extensions"
   xmlns:dtb="http://www.daisy.org/z3986/2005/dtbook/" exclude-result-prefixes="dtb">
+  <!--id of an element in the FO: its own id, else its position in the book,
+  e.g. n1.2.3.1. Unlike generate-id() it is the same whether the whole book
+  or a single chapter is transformed, and does not change with the content of
+  the chapters before.-->
+  <xsl:template name="id">
+    <xsl:choose>
+      <xsl:when test="@id">
+        <xsl:value-of select="@id" />
+      </xsl:when>
+      <xsl:otherwise>
+        <xsl:text>n</xsl:text>
+        <xsl:number level="multiple" count="*" format="1" />
+      </xsl:otherwise>
+    </xsl:choose>
+  </xsl:template>
   <!--book-->
   <xsl:template match="dtb:book">
     <fo:block>
@@ -39,37 +54,55 @@ Copyright (C) 2009 Eightfold Consulting LLC
   </xsl:template>
   <!--level1-->
   <xsl:template match="dtb:level1">
-    <fo:block id="{generate-id(.)}">
+    <fo:block>
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <!--level2-->
   <xsl:template match="dtb:level2">
-    <fo:block id="{generate-id(.)}">
+    <fo:block>
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <!--level3-->
   <xsl:template match="dtb:level3">
-    <fo:block id="{generate-id(.)}">
+    <fo:block>
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <!--level4-->
   <xsl:template match="dtb:level4">
-    <fo:block id="{generate-id(.)}">
+    <fo:block>
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <!--level5-->
   <xsl:template match="dtb:level5">
-    <fo:block id="{generate-id(.)}">
+    <fo:block>
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <!--level6-->
   <xsl:template match="dtb:level6">
-    <fo:block id="{generate-id(.)}">
+    <fo:block>
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
@@ -93,38 +126,56 @@ Copyright (C) 2009 Eightfold Consulting LLC
   </xsl:template>
   <!--headers-->
   <xsl:template name="h1" match="dtb:h1">
-    <fo:block xsl:use-attribute-sets="spacing" id="{generate-id(.)}" font-size="2em" font-family="{$headerFontFamily}"
+    <fo:block xsl:use-attribute-sets="spacing" font-size="2em" font-family="{$headerFontFamily}"
       line-height="{$lineHeight}" font-weight="bold">
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <xsl:template name="h2" match="dtb:h2">
-    <fo:block xsl:use-attribute-sets="spacing" id="{generate-id(.)}" line-height="{$lineHeight}" font-size="1.75em"
+    <fo:block xsl:use-attribute-sets="spacing" line-height="{$lineHeight}" font-size="1.75em"
       font-family="{$headerFontFamily}" font-weight="bold">
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <xsl:template name="h3" match="dtb:h3">
-    <fo:block xsl:use-attribute-sets="spacing" id="{generate-id(.)}" font-size="1.5em" line-height="{$lineHeight}"
+    <fo:block xsl:use-attribute-sets="spacing" font-size="1.5em" line-height="{$lineHeight}"
       font-family="{$headerFontFamily}" font-weight="bold" keep-with-next="5">
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <xsl:template name="h4" match="dtb:h4">
-    <fo:block xsl:use-attribute-sets="spacing" id="{generate-id(.)}" font-size="1.25em" line-height="{$lineHeight}"
+    <fo:block xsl:use-attribute-sets="spacing" font-size="1.25em" line-height="{$lineHeight}"
       font-family="{$headerFontFamily}" keep-with-next="5">
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <xsl:template name="h5" match="dtb:h5">
-    <fo:block xsl:use-attribute-sets="spacing" id="{generate-id(.)}" font-size="inherit" line-height="{$lineHeight}"
+    <fo:block xsl:use-attribute-sets="spacing" font-size="inherit" line-height="{$lineHeight}"
       font-family="{$headerFontFamily}" font-weight="bold" keep-with-next="5">
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
   <xsl:template name="h6" match="dtb:h6">
-    <fo:block xsl:use-attribute-sets="spacing" id="{generate-id(.)}" font-size="inherit" line-height="{$lineHeight}"
+    <fo:block xsl:use-attribute-sets="spacing" font-size="inherit" line-height="{$lineHeight}"
       font-family="{$headerFontFamily}" font-weight="italic" keep-with-next="5">
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:apply-templates/>
     </fo:block>
   </xsl:template>
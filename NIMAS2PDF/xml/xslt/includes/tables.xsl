@@ -19,8 +19,11 @@ Copyright (C) 2009 Eightfold Consulting LLC
   xmlns:dtb="http://www.daisy.org/z3986/2005/dtbook/" exclude-result-prefixes="dtb">
   <!--table-->
   <xsl:template match="dtb:table">
-    <fo:table xsl:use-attribute-sets="spacing" id="{generate-id(.)}" table-layout="fixed" font-size="{$tableFontSize}" inline-progression-dimension="100%"
+    <fo:table xsl:use-attribute-sets="spacing" table-layout="fixed" font-size="{$tableFontSize}" inline-progression-dimension="100%"
       border-collapse="collapse" width="100%" border="solid 2px black" keep-together="3">
+      <xsl:attribute name="id">
+        <xsl:call-template name="id" />
+      </xsl:attribute>
       <xsl:choose>
         <xsl:when test="dtb:tr/dtb:th">
           <fo:table-header>